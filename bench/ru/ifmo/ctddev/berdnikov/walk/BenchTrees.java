@@ -0,0 +1,141 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic trees for benchmarks of the walk.
+ * <p>
+ * Trees are generated once into <tt>${java.io.tmpdir}/walk-bench/&lt;shape&gt;</tt> with a fixed
+ * seed and reused by later runs and forks; a <tt>&lt;shape&gt;.complete</tt> file next to
+ * the tree marks that generation has finished. Delete the marker to regenerate the tree.
+ */
+class BenchTrees {
+    private static final long SEED = 0x57414c4bL;
+    private static final int CHUNK = 1 << 20;
+
+    /**
+     * Shapes of generated trees.
+     */
+    enum Shape {
+        /**
+         * A chain of 512 nested directories with two 4 KiB files on every level.
+         */
+        DEEP,
+        /**
+         * A single directory with 20000 files of 2 KiB.
+         */
+        WIDE,
+        /**
+         * 256 directories with 400 files of 0 to 512 bytes each.
+         */
+        TINY,
+        /**
+         * Four files of 256 MiB.
+         */
+        HUGE
+    }
+
+    /**
+     * Generated tree and its totals.
+     */
+    static class Tree {
+        final Path root;
+        final long files;
+        final long bytes;
+
+        Tree(Path root, long files, long bytes) {
+            this.root = root;
+            this.files = files;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Returns tree of given shape, generating it if it doesn't exist yet.
+     *
+     * @param shape shape of tree
+     * @return generated tree
+     * @throws IOException if tree can't be generated
+     */
+    static Tree get(Shape shape) throws IOException {
+        Path base = Paths.get(System.getProperty("java.io.tmpdir"), "walk-bench");
+        Path root = base.resolve(shape.name().toLowerCase());
+        Path complete = base.resolve(shape.name().toLowerCase() + ".complete");
+        if (!Files.exists(complete)) {
+            delete(root);
+            Files.createDirectories(root);
+            generate(shape, root, new Random(SEED));
+            Files.createFile(complete);
+        }
+        return count(root);
+    }
+
+    private static void generate(Shape shape, Path root, Random random) throws IOException {
+        switch (shape) {
+            case DEEP:
+                Path dir = root;
+                for (int level = 0; level < 512; level++) {
+                    write(dir.resolve("a"), 4096, random);
+                    write(dir.resolve("b"), 4096, random);
+                    dir = Files.createDirectory(dir.resolve("d"));
+                }
+                break;
+            case WIDE:
+                for (int i = 0; i < 20000; i++) {
+                    write(root.resolve("f" + i), 2048, random);
+                }
+                break;
+            case TINY:
+                for (int i = 0; i < 256; i++) {
+                    Path sub = Files.createDirectory(root.resolve("d" + i));
+                    for (int j = 0; j < 400; j++) {
+                        write(sub.resolve("f" + j), random.nextInt(513), random);
+                    }
+                }
+                break;
+            case HUGE:
+                for (int i = 0; i < 4; i++) {
+                    write(root.resolve("f" + i), 256L << 20, random);
+                }
+                break;
+        }
+    }
+
+    private static void write(Path file, long size, Random random) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(size, CHUNK)];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long left = size; left > 0; left -= bytes.length) {
+                random.nextBytes(bytes);
+                out.write(bytes, 0, (int) Math.min(left, bytes.length));
+            }
+        }
+    }
+
+    private static Tree count(Path root) throws IOException {
+        long[] totals = new long[2];
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile).forEach(file -> {
+                totals[0]++;
+                totals[1] += file.toFile().length();
+            });
+        }
+        return new Tree(root, totals[0], totals[1]);
+    }
+
+    private static void delete(Path root) throws IOException {
+        if (Files.exists(root)) {
+            try (Stream<Path> paths = Files.walk(root)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of sequential walks reading from a cold page cache, where the order of reads
+ * matters most.
+ * <p>
+ * Every operation is a single walk of a {@link BenchTrees.Tree} after the page cache, dentries
+ * and inodes are dropped, which needs Linux and root: run as
+ * <tt>sudo ./bench.command ColdWalkBenchmark</tt>. Compare <tt>sequential</tt> with
+ * <tt>inode-order</tt> on the disk of interest by setting <tt>-Djava.io.tmpdir</tt>; on SSDs
+ * and in virtual machines the difference is small, on spinning disks many-file shapes gain most.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ColdWalkBenchmark {
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    @Param({"WIDE", "TINY", "DEEP"})
+    public String shape;
+
+    @Param({"sequential", "inode-order"})
+    public String mode;
+
+    @Param({"fnv1-32"})
+    public String hash;
+
+    private BenchTrees.Tree tree;
+    private FileHasher hasher;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tree = BenchTrees.get(BenchTrees.Shape.valueOf(shape));
+        hasher = new HashEngine(HashProviders.forName(hash));
+    }
+
+    @Setup(Level.Invocation)
+    public void dropCaches() throws IOException, InterruptedException {
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        try {
+            Files.write(DROP_CACHES, "3".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            throw new IOException("Can't drop page cache, run as root on Linux: " + e.getMessage(), e);
+        }
+    }
+
+    @Benchmark
+    public void walk() throws IOException {
+        try (ManifestSink writer = WalkBenchmark.discard()) {
+            switch (mode) {
+                case "sequential":
+                    Files.walkFileTree(tree.root, new RecursiveWalk.Walker(writer, hasher, null));
+                    break;
+                case "inode-order":
+                    new InodeOrderWalker(writer, hasher, null).walk(tree.root, null);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown mode " + mode);
+            }
+        }
+    }
+}
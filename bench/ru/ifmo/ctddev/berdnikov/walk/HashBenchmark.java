@@ -0,0 +1,75 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of hashing a single file by {@link HashEngine}, for every algorithm
+ * and for both read paths: sizes below {@link HashEngine#MAP_THRESHOLD} are read
+ * into a buffer, larger ones are memory mapped.
+ * <p>
+ * The file is hashed from the page cache, so the results are the speed of the
+ * algorithm and of the read path, not of the disk. Bytes per second are reported
+ * next to hashes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class HashBenchmark {
+    @Param({"fnv1-32", "fnv1a-64", "crc32c", "xxhash64", "sha-256"})
+    public String hash;
+
+    @Param({"4096", "262144", "67108864"})
+    public int size;
+
+    private HashEngine engine;
+    private Path file;
+
+    /**
+     * Bytes hashed, reported by JMH as a rate next to the hashes per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        engine = new HashEngine(HashProviders.forName(hash));
+        file = Files.createTempFile("hash-bench", ".bin");
+        byte[] bytes = new byte[Math.min(size, 1 << 20)];
+        Random random = new Random(size);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int left = size; left > 0; left -= bytes.length) {
+                random.nextBytes(bytes);
+                out.write(bytes, 0, Math.min(left, bytes.length));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public byte[] hash(Throughput throughput) throws IOException {
+        throughput.bytes += size;
+        return engine.hash(file);
+    }
+}
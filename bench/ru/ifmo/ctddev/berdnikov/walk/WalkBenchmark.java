@@ -0,0 +1,168 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of every way to walk a tree and write its manifest.
+ * <p>
+ * One operation is a walk of a whole {@link BenchTrees.Tree}. Besides walks per second,
+ * {@link Throughput} reports files and bytes per second, which are the numbers to watch
+ * for regressions. The manifest is formatted as usual and then discarded, so output
+ * costs CPU but no disk. Trees are read from the page cache after the first iteration;
+ * {@link ColdWalkBenchmark} measures cold reads.
+ * <p>
+ * <tt>threads</tt> is ignored by the <tt>sequential</tt>, <tt>inode-order</tt>, <tt>cached</tt> and <tt>hard-links</tt> modes,
+ * restrict them with <tt>-p threads=1</tt> to avoid repeated runs. The <tt>virtual</tt> mode needs
+ * Java 21 or newer, so it is not run by default; select it with <tt>-p mode=virtual</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WalkBenchmark {
+    @Param({"DEEP", "WIDE", "TINY", "HUGE"})
+    public String shape;
+
+    @Param({"sequential", "inode-order", "parallel", "pipeline", "thread-per-file", "async", "cached", "hard-links", "duplicates"})
+    public String mode;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"fnv1-32"})
+    public String hash;
+
+    private BenchTrees.Tree tree;
+    private HashProvider provider;
+    private FileHasher hasher;
+
+    /**
+     * Files and bytes walked, reported by JMH as rates next to the walks per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long files;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            files = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        tree = BenchTrees.get(BenchTrees.Shape.valueOf(shape));
+        provider = HashProviders.forName(hash);
+        HashEngine engine = new HashEngine(provider);
+        hasher = engine;
+        if (mode.equals("cached")) {
+            // the cache doesn't keep files modified within the last second
+            Thread.sleep(1100);
+            Path file = Files.createTempFile("walk-bench", ".cache");
+            try {
+                Files.delete(file);
+                HashCache cache = HashCache.load(file, engine);
+                Files.walkFileTree(tree.root, new RecursiveWalk.Walker(discard(), cache, null));
+                cache.save();
+                hasher = HashCache.load(file, engine);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public void walk(Throughput throughput) throws IOException {
+        switch (mode) {
+            case "sequential":
+            case "cached":
+                try (ManifestSink writer = discard()) {
+                    Files.walkFileTree(tree.root, new RecursiveWalk.Walker(writer, hasher, null));
+                }
+                break;
+            case "hard-links":
+                // seen inodes are per run, a table kept between invocations would let them skip every read
+                try (ManifestSink writer = discard()) {
+                    Files.walkFileTree(tree.root, new RecursiveWalk.Walker(writer, new HardLinkHasher(hasher), null));
+                }
+                break;
+            case "inode-order":
+                try (ManifestSink writer = discard()) {
+                    new InodeOrderWalker(writer, hasher, null).walk(tree.root, null);
+                }
+                break;
+            case "parallel":
+            case "pipeline":
+                try (ManifestSink writer = mode.equals("pipeline") ? new PipelinedWriter(discard(), 16) : discard()) {
+                    ParallelWalker parallelWalker = new ParallelWalker(threads, writer, hasher, null);
+                    try {
+                        parallelWalker.walk(tree.root);
+                    } finally {
+                        parallelWalker.shutdown();
+                    }
+                }
+                break;
+            case "thread-per-file":
+            case "virtual":
+            case "async":
+                try (ManifestSink writer = discard()) {
+                    OrderedWalker orderedWalker;
+                    if (mode.equals("async")) {
+                        AsyncHashEngine engine = new AsyncHashEngine(provider, threads, 1 << 18, 2 * threads);
+                        orderedWalker = new AsyncWalker(engine, 2 * threads, writer, provider.length(), null);
+                    } else {
+                        orderedWalker = new ThreadPerFileWalker(threads, mode.equals("virtual"), writer, hasher, null);
+                    }
+                    try {
+                        orderedWalker.walk(tree.root);
+                    } finally {
+                        orderedWalker.shutdown();
+                    }
+                }
+                break;
+            case "duplicates":
+                DuplicateFinder finder = new DuplicateFinder(hasher, provider, threads);
+                try (ManifestWriter writer = discard()) {
+                    finder.add(tree.root);
+                    finder.write(writer);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown mode " + mode);
+        }
+        throughput.files += tree.files;
+        throughput.bytes += tree.bytes;
+    }
+
+    static ManifestWriter discard() {
+        return new ManifestWriter(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int length = src.remaining();
+                src.position(src.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
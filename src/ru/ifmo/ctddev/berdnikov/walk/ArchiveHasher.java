@@ -0,0 +1,298 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * {@link FileHasher} which, after the hash of every zip archive, recognized by {@link #EXTENSIONS},
+ * hashes its entries: hash of the decompressed entry and path <tt>archive!/entry</tt>, in the order
+ * of the central directory. The entries are kept until {@link ArchiveSink} takes them to write after
+ * the line of the archive. Directory entries have no lines, nested archives are hashed as entries
+ * but not opened.
+ * <p>
+ * Entries are hashed by the thread which hashed the archive, so parallel walks decompress archives
+ * in parallel as well, and a writing thread never does. Every entry is decompressed once straight into
+ * the hasher, nothing is written to disk. The central directory gives the entries up front, so entries
+ * of archives larger than {@link #PARALLEL_THRESHOLD} are decompressed in parallel from their own
+ * streams. An archive whose central directory can't be read, as a truncated one, is read in one
+ * sequential pass of its local headers instead. An entry which can't be decompressed gets a zero hash;
+ * an archive which can't be read at all has only its own line.
+ * <p>
+ * Names are decoded as UTF-8, as flagged by most tools. Archives with names which aren't UTF-8 and
+ * aren't flagged as such, as written by older Windows tools, are read again with names decoded by
+ * {@link #FALLBACK_CHARSET}, the charset of the zip specification, which accepts any bytes.
+ * <p>
+ * Opening an archive is charged to the throttle once, by the hash of the archive itself; compressed
+ * bytes of entries are charged as they are read.
+ */
+class ArchiveHasher implements FileHasher {
+    /**
+     * Extensions of file names, in lower case, which are read as zip archives.
+     */
+    static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList("zip", "jar", "war", "ear", "aar", "apk"));
+    /**
+     * Archives with less data in entries are decompressed by the hashing thread alone.
+     */
+    static final long PARALLEL_THRESHOLD = 1 << 20;
+    /**
+     * Charset of names of archives whose names aren't UTF-8.
+     */
+    static final Charset FALLBACK_CHARSET = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileHasher hasher;
+    private final HashProvider provider;
+    private final IoThrottle throttle;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<HashProvider.Hasher> hashers;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    /**
+     * Entries of hashed archives whose lines are not written yet, one list per hash of the path.
+     */
+    private final Map<Path, Deque<List<Entry>>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Creates hasher.
+     *
+     * @param hasher source of file hashes, archives included
+     * @param provider algorithm of entry hashes, the same as of file hashes
+     * @param threads number of threads decompressing entries of one large archive
+     * @param throttle limits of bytes read from archives
+     */
+    ArchiveHasher(FileHasher hasher, HashProvider provider, int threads, IoThrottle throttle) {
+        this.hasher = hasher;
+        this.provider = provider;
+        this.throttle = throttle;
+        this.pool = new ForkJoinPool(threads);
+        this.hashers = ThreadLocal.withInitial(provider::newHasher);
+    }
+
+    @Override
+    public byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+        byte[] hash = hasher.hash(file, attrs);
+        if (isArchive(file)) {
+            List<Entry> entries = entries(file);
+            pending.compute(file, (path, lists) -> {
+                Deque<List<Entry>> result = lists != null ? lists : new ArrayDeque<>();
+                result.add(entries);
+                return result;
+            });
+        }
+        return hash;
+    }
+
+    @Override
+    public int length() {
+        return hasher.length();
+    }
+
+    /**
+     * Takes entries of an archive hashed by this hasher, for the line of the archive.
+     *
+     * @param file path of the line
+     * @return entries in order, empty if the file is not a hashed archive
+     */
+    List<Entry> take(Path file) {
+        List<List<Entry>> taken = new ArrayList<>(1);
+        pending.computeIfPresent(file, (path, lists) -> {
+            taken.add(lists.poll());
+            return lists.isEmpty() ? null : lists;
+        });
+        return taken.isEmpty() ? Collections.emptyList() : taken.get(0);
+    }
+
+    /**
+     * Stops threads decompressing large archives.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    private static boolean isArchive(Path file) {
+        Path fileName = file.getFileName();
+        if (fileName == null) {
+            return false;
+        }
+        String name = fileName.toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private List<Entry> entries(Path archive) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        ZipFile zip;
+        try {
+            zip = open(archive);
+        } catch (IOException e) {
+            return result;
+        }
+        if (zip == null) {
+            if (!readStreamed(archive, StandardCharsets.UTF_8, result)) {
+                result.clear();
+                readStreamed(archive, FALLBACK_CHARSET, result);
+            }
+            return result;
+        }
+        try {
+            List<ZipEntry> entries = new ArrayList<>();
+            long total = 0;
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.add(entry);
+                    total += Math.max(entry.getSize(), 0);
+                }
+            }
+            if (entries.size() < 2 || total < PARALLEL_THRESHOLD) {
+                for (ZipEntry entry : entries) {
+                    acquireBytes(entry);
+                    add(result, archive, entry.getName(), hash(zip, entry));
+                }
+                return result;
+            }
+            List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(entries.size());
+            for (ZipEntry entry : entries) {
+                acquireBytes(entry);
+                tasks.add(pool.submit(() -> hash(zip, entry)));
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                add(result, archive, entries.get(i).getName(), tasks.get(i).join());
+            }
+            return result;
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Opens central directory of given archive, with names in UTF-8 or else in {@link #FALLBACK_CHARSET}.
+     *
+     * @return opened archive, <tt>null</tt> if its central directory is broken
+     * @throws IOException if archive can't be read
+     */
+    private static ZipFile open(Path archive) throws IOException {
+        try {
+            return new ZipFile(archive.toFile());
+        } catch (ZipException | IllegalArgumentException e) {
+            // names may be in another charset
+        }
+        try {
+            return new ZipFile(archive.toFile(), FALLBACK_CHARSET);
+        } catch (ZipException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads entries in the order of local headers, reading the archive once from the start.
+     *
+     * @return <tt>false</tt> if a name can't be decoded by given charset, then the entries read so far are partial
+     */
+    private boolean readStreamed(Path archive, Charset charset, List<Entry> result) throws IOException {
+        ZipInputStream in;
+        try {
+            in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive), BUFFER_SIZE), charset);
+        } catch (IOException e) {
+            return true;
+        }
+        try (ZipInputStream stream = in) {
+            while (true) {
+                ZipEntry entry;
+                try {
+                    entry = stream.getNextEntry();
+                } catch (IOException e) {
+                    // the rest of the archive can't be read
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    // malformed name
+                    return false;
+                }
+                if (entry == null) {
+                    return true;
+                }
+                if (!entry.isDirectory()) {
+                    acquireBytes(entry);
+                    byte[] hash = hash(stream);
+                    add(result, archive, entry.getName(), hash);
+                    if (hash == null) {
+                        // the rest of a broken stream can't be trusted
+                        return true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void acquireBytes(ZipEntry entry) throws IOException {
+        if (entry.getCompressedSize() > 0) {
+            throttle.acquireBytes(entry.getCompressedSize());
+        }
+    }
+
+    private byte[] hash(ZipFile zip, ZipEntry entry) {
+        try (InputStream in = zip.getInputStream(entry)) {
+            return hash(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hashes the rest of given stream, returns <tt>null</tt> if it can't be read.
+     */
+    private byte[] hash(InputStream in) {
+        HashProvider.Hasher entryHasher = hashers.get();
+        byte[] buffer = buffers.get();
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                entryHasher.update(ByteBuffer.wrap(buffer, 0, read));
+            }
+            return entryHasher.digest();
+        } catch (IOException e) {
+            // drop the partial state
+            entryHasher.digest();
+            return null;
+        }
+    }
+
+    private void add(List<Entry> result, Path archive, String name, byte[] hash) {
+        Path path;
+        try {
+            path = Paths.get(archive + "!/" + (name.startsWith("/") ? name.substring(1) : name));
+        } catch (InvalidPathException e) {
+            return;
+        }
+        result.add(new Entry(path, hash != null ? hash : new byte[provider.length()]));
+    }
+
+    /**
+     * Line of an archive entry.
+     */
+    static class Entry {
+        final Path path;
+        final byte[] hash;
+
+        Entry(Path path, byte[] hash) {
+            this.path = path;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * {@link ManifestSink} which follows the line of every zip archive with lines of its entries,
+ * hashed by {@link ArchiveHasher} when the archive itself was. The writing thread only copies
+ * the entry lines, so it is never held up by decompression.
+ */
+class ArchiveSink implements ManifestSink {
+    private final ManifestSink sink;
+    private final ArchiveHasher archives;
+
+    /**
+     * Creates sink.
+     *
+     * @param sink sink for file and entry lines, closed with this sink
+     * @param archives hasher of the walk, shut down with this sink
+     */
+    ArchiveSink(ManifestSink sink, ArchiveHasher archives) {
+        this.sink = sink;
+        this.archives = archives;
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        sink.write(hash, file);
+        for (ArchiveHasher.Entry entry : archives.take(file)) {
+            sink.write(entry.hash, entry.path);
+        }
+    }
+
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        sink.writeDirectory(hash, dir);
+    }
+
+    @Override
+    public void close() throws IOException {
+        archives.shutdown();
+        sink.close();
+    }
+}
@@ -0,0 +1,302 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hashes files by chunks read through {@link AsynchronousFileChannel}, keeping
+ * a fixed number of reads in flight across all open files.
+ * <p>
+ * Files are queued in the order they are given, and free read slots go to the
+ * oldest file which still has chunks to read, so files complete roughly in order.
+ * Chunks may complete in any order; each file keeps completed chunks until
+ * the ones before them arrive and feeds them to its hasher strictly by offset.
+ * <p>
+ * How reads are performed is up to the JDK: on Windows they are overlapped I/O,
+ * on Linux and macOS they are blocking positional reads run by the channel's executor,
+ * so every read in flight takes a thread. The executor has at most {@link #MAX_READER_THREADS}
+ * threads, and reads in flight are capped at its size, as more would only wait in its queue.
+ * <p>
+ * Bytes are charged to the {@link IoThrottle} as each read completes, by the reader thread,
+ * which keeps its read slot while it waits, so the number of reads in flight drops to match
+ * the limit.
+ */
+class AsyncHashEngine {
+    /**
+     * Maximal number of reader threads, and so of reads in flight.
+     */
+    static final int MAX_READER_THREADS = 64;
+
+    private final HashProvider provider;
+    private final IoThrottle throttle;
+    private final int chunkSize;
+    private final int inFlight;
+    private final Semaphore openFiles;
+    private final Semaphore window;
+    private final ExecutorService executor;
+    private final Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.READ);
+
+    private final Queue<FileState> waiting = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final Queue<HashProvider.Hasher> hashers = new ConcurrentLinkedQueue<>();
+    private final ChunkHandler handler = new ChunkHandler();
+
+    /**
+     * Creates engine.
+     *
+     * @param provider hash algorithm
+     * @param inFlight maximal number of reads in flight, at most {@link #MAX_READER_THREADS} are used
+     * @param chunkSize size of one read in bytes
+     * @param maxOpenFiles maximal number of files open at once
+     */
+    AsyncHashEngine(HashProvider provider, int inFlight, int chunkSize, int maxOpenFiles) {
+        this(provider, inFlight, chunkSize, maxOpenFiles, IoThrottle.UNLIMITED);
+    }
+
+    /**
+     * Creates engine with limited I/O.
+     *
+     * @param provider hash algorithm
+     * @param inFlight maximal number of reads in flight, at most {@link #MAX_READER_THREADS} are used
+     * @param chunkSize size of one read in bytes
+     * @param maxOpenFiles maximal number of files open at once
+     * @param throttle limits of reads and opens
+     */
+    AsyncHashEngine(HashProvider provider, int inFlight, int chunkSize, int maxOpenFiles, IoThrottle throttle) {
+        this.provider = provider;
+        this.throttle = throttle;
+        this.chunkSize = chunkSize;
+        this.openFiles = new Semaphore(maxOpenFiles);
+        this.inFlight = Math.min(inFlight, MAX_READER_THREADS);
+        this.window = new Semaphore(this.inFlight);
+        this.executor = Executors.newFixedThreadPool(this.inFlight, task -> {
+            Thread thread = new Thread(task, "async-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns maximal number of reads in flight, after the cap by the number of reader threads.
+     *
+     * @return number of read slots
+     */
+    int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Opens given file and queues its reads. Waits if too many files are open or the budget of opens is spent.
+     *
+     * @param file file to hash
+     * @return future hash, completed exceptionally by {@link IOException} if file can't be read
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    CompletableFuture<byte[]> hash(Path file) throws InterruptedIOException {
+        try {
+            openFiles.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for open files");
+        }
+        FileState state = new FileState();
+        try {
+            throttle.acquireOpen();
+            state.channel = AsynchronousFileChannel.open(file, options, executor);
+            state.size = state.channel.size();
+        } catch (InterruptedIOException e) {
+            state.fail(e);
+            throw e;
+        } catch (IOException e) {
+            state.fail(e);
+            return state.result;
+        }
+        state.hasher = hashers.poll();
+        if (state.hasher == null) {
+            state.hasher = provider.newHasher();
+        }
+        if (state.size == 0) {
+            state.finish();
+        } else {
+            waiting.add(state);
+            pump();
+        }
+        return state.result;
+    }
+
+    /**
+     * Issues reads while there are free slots and files with chunks to read.
+     */
+    private void pump() {
+        while (window.tryAcquire()) {
+            FileState state = waiting.peek();
+            if (state == null) {
+                window.release();
+                if (waiting.isEmpty()) {
+                    return;
+                }
+                // a file was queued after the check, try again
+                continue;
+            }
+            Chunk chunk;
+            synchronized (state) {
+                if (state.failed || state.issued >= state.size) {
+                    waiting.remove(state);
+                    window.release();
+                    continue;
+                }
+                chunk = new Chunk(state, state.issued, buffer());
+                chunk.buffer.limit((int) Math.min(chunkSize, state.size - state.issued));
+                state.issued += chunkSize;
+                if (state.issued >= state.size) {
+                    waiting.remove(state);
+                }
+            }
+            read(chunk);
+        }
+    }
+
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    private void read(Chunk chunk) {
+        try {
+            chunk.state.channel.read(chunk.buffer, chunk.offset + chunk.buffer.position(), chunk, handler);
+        } catch (RuntimeException e) {
+            handler.failed(e, chunk);
+        }
+    }
+
+    private class ChunkHandler implements CompletionHandler<Integer, Chunk> {
+        @Override
+        public void completed(Integer read, Chunk chunk) {
+            FileState state = chunk.state;
+            if (read == -1) {
+                failed(new IOException("File shrank while reading"), chunk);
+                return;
+            }
+            try {
+                throttle.acquireBytes(read);
+            } catch (InterruptedIOException e) {
+                failed(e, chunk);
+                return;
+            }
+            if (!state.failed && chunk.buffer.hasRemaining()) {
+                // short read, the slot is kept for the rest of the chunk
+                read(chunk);
+                return;
+            }
+            window.release();
+            synchronized (state) {
+                if (!state.failed) {
+                    chunk.buffer.flip();
+                    state.completed.put(chunk.offset, chunk.buffer);
+                    ByteBuffer next;
+                    while ((next = state.completed.remove(state.hashed)) != null) {
+                        state.hasher.update(next);
+                        state.hashed += chunkSize;
+                        recycle(next);
+                    }
+                    if (state.hashed >= state.size) {
+                        state.finish();
+                    }
+                } else {
+                    recycle(chunk.buffer);
+                }
+            }
+            pump();
+        }
+
+        @Override
+        public void failed(Throwable exc, Chunk chunk) {
+            window.release();
+            synchronized (chunk.state) {
+                chunk.state.fail(exc instanceof IOException ? (IOException) exc : new IOException(exc));
+                recycle(chunk.buffer);
+            }
+            pump();
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Closes reader threads. Hashes in progress are not completed.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class Chunk {
+        private final FileState state;
+        private final long offset;
+        private final ByteBuffer buffer;
+
+        Chunk(FileState state, long offset, ByteBuffer buffer) {
+            this.state = state;
+            this.offset = offset;
+            this.buffer = buffer;
+        }
+    }
+
+    private class FileState {
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final Map<Long, ByteBuffer> completed = new HashMap<>();
+        private AsynchronousFileChannel channel;
+        private HashProvider.Hasher hasher;
+        private long size;
+        private long issued;
+        private long hashed;
+        private boolean failed;
+
+        void finish() {
+            byte[] hash = hasher.digest();
+            release();
+            result.complete(hash);
+        }
+
+        void fail(IOException e) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            for (ByteBuffer buffer : completed.values()) {
+                recycle(buffer);
+            }
+            completed.clear();
+            if (hasher != null) {
+                // drop partial state, the hasher is reused for the next file
+                hasher.digest();
+            }
+            release();
+            result.completeExceptionally(e);
+        }
+
+        private void release() {
+            if (hasher != null) {
+                hashers.offer(hasher);
+                hasher = null;
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // contents are already read
+            }
+            openFiles.release();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Future;
+
+/**
+ * Walk which hashes files by {@link AsyncHashEngine}.
+ */
+class AsyncWalker extends OrderedWalker {
+    private final AsyncHashEngine engine;
+
+    /**
+     * Creates walker.
+     *
+     * @param engine engine which reads files
+     * @param maxOpenFiles maximal number of files open at once by the engine
+     * @param writer output
+     * @param hashLength length of hashes in bytes
+     * @param metrics metrics of the walk, <tt>null</tt> if not collected
+     */
+    AsyncWalker(AsyncHashEngine engine, int maxOpenFiles, ManifestSink writer, int hashLength, WalkMetrics metrics) {
+        super(writer, hashLength, 4 * maxOpenFiles, metrics);
+        this.engine = engine;
+    }
+
+    @Override
+    protected Future<byte[]> start(Path file, BasicFileAttributes attrs) throws IOException {
+        if (metrics == null) {
+            return engine.hash(file);
+        }
+        // the engine bypasses the hasher chain, so files are measured here from open to digest
+        long start = System.nanoTime();
+        return engine.hash(file).whenComplete((hash, e) -> metrics.file(file, attrs.size(), System.nanoTime() - start));
+    }
+
+    @Override
+    void shutdown() {
+        engine.shutdown();
+    }
+}
@@ -0,0 +1,284 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads manifest written by {@link BinaryManifestWriter}, record by record.
+ * <p>
+ * Blocks are either read into a heap buffer one at a time, which suits a single pass
+ * over a large manifest, or served from memory mapped windows of whole blocks, which
+ * suits repeated seeks. Either way {@link #seek(long)} decodes only the block holding
+ * the record.
+ * <pre>
+ * try (BinaryManifestReader reader = BinaryManifestReader.open(file, false)) {
+ *     while (reader.next()) {
+ *         use(reader.hash(), reader.path());
+ *     }
+ * }
+ * </pre>
+ */
+class BinaryManifestReader implements ManifestSource {
+    private static final long MAP_WINDOW = 1 << 30;
+    private static final int HEADER_LIMIT = 1 << 12;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final String algorithm;
+    private final int hashLength;
+    private final int blockRecords;
+    private final long records;
+    private final long indexOffset;
+    private final long[] blocks;
+    private final byte[] hash;
+    /**
+     * Mapped windows, <tt>null</tt> if blocks are read.
+     */
+    private final List<MappedByteBuffer> windows;
+    private final int[] blockWindows;
+    private final long[] windowOffsets;
+
+    private ByteBuffer block;
+    private ByteBuffer readBuffer;
+    private long record;
+    private byte[] path = new byte[256];
+    private int pathLength;
+
+    private BinaryManifestReader(Path file, FileChannel channel, boolean mapped) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        long size = channel.size();
+        ByteBuffer header = read(0, (int) Math.min(size, HEADER_LIMIT));
+        if (header.remaining() < 4 || header.getInt() != BinaryManifestWriter.MAGIC) {
+            throw new IOException("Not a binary manifest: " + file);
+        }
+        byte[] name = new byte[getVarint(header)];
+        header.get(name);
+        algorithm = new String(name, StandardCharsets.UTF_8);
+        hashLength = header.getInt();
+        blockRecords = header.getInt();
+        hash = new byte[hashLength];
+
+        ByteBuffer trailer = read(size - BinaryManifestWriter.TRAILER_SIZE, BinaryManifestWriter.TRAILER_SIZE);
+        records = trailer.getLong();
+        indexOffset = trailer.getLong();
+        if (trailer.getInt() != BinaryManifestWriter.MAGIC) {
+            throw new IOException("Truncated binary manifest: " + file);
+        }
+        int blockCount = (int) ((records + blockRecords - 1) / blockRecords);
+        ByteBuffer index = read(indexOffset, 8 * blockCount);
+        blocks = new long[blockCount + 1];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = index.getLong();
+        }
+        blocks[blockCount] = indexOffset;
+
+        if (mapped) {
+            windows = new ArrayList<>();
+            blockWindows = new int[blockCount];
+            windowOffsets = new long[blockCount];
+            int first = 0;
+            while (first < blockCount) {
+                int last = first + 1;
+                while (last < blockCount && blocks[last + 1] - blocks[first] <= MAP_WINDOW) {
+                    last++;
+                }
+                Arrays.fill(blockWindows, first, last, windows.size());
+                windowOffsets[windows.size()] = blocks[first];
+                windows.add(channel.map(FileChannel.MapMode.READ_ONLY, blocks[first], blocks[last] - blocks[first]));
+                first = last;
+            }
+        } else {
+            windows = null;
+            blockWindows = null;
+            windowOffsets = null;
+        }
+    }
+
+    /**
+     * Opens binary manifest.
+     *
+     * @param file manifest file
+     * @param mapped whether blocks are memory mapped rather than read
+     * @return reader positioned before the first record
+     * @throws IOException if file can't be read or is not a binary manifest
+     */
+    static BinaryManifestReader open(Path file, boolean mapped) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new BinaryManifestReader(file, channel, mapped);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns name of the hash algorithm.
+     *
+     * @return algorithm name
+     */
+    @Override
+    public String algorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public boolean fingerprints() {
+        return algorithm.startsWith(FingerprintHasher.ALGORITHM_PREFIX);
+    }
+
+    /**
+     * Returns length of hashes in bytes.
+     *
+     * @return hash length
+     */
+    int hashLength() {
+        return hashLength;
+    }
+
+    /**
+     * Returns number of records in manifest.
+     *
+     * @return number of records
+     */
+    long records() {
+        return records;
+    }
+
+    /**
+     * Positions reader so that {@link #next()} reads record with given number.
+     *
+     * @param record number of record, from <tt>0</tt> to {@link #records()}
+     * @throws IOException if manifest can't be read
+     */
+    void seek(long record) throws IOException {
+        if (record < 0 || record > records) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + records);
+        }
+        this.record = record - record % blockRecords;
+        block = null;
+        while (this.record < record) {
+            next();
+        }
+    }
+
+    /**
+     * Reads next record.
+     *
+     * @return <tt>false</tt> if there are no more records
+     * @throws IOException if manifest can't be read
+     */
+    @Override
+    public boolean next() throws IOException {
+        if (record >= records) {
+            return false;
+        }
+        if (block == null || record % blockRecords == 0) {
+            block = block((int) (record / blockRecords));
+        }
+        try {
+            int shared = getVarint(block);
+            int rest = getVarint(block);
+            if (shared > pathLength) {
+                throw new IOException("Malformed binary manifest: " + file);
+            }
+            if (shared + rest > path.length) {
+                path = Arrays.copyOf(path, Math.max(shared + rest, 2 * path.length));
+            }
+            block.get(path, shared, rest);
+            pathLength = shared + rest;
+            block.get(hash);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated block in binary manifest: " + file);
+        }
+        record++;
+        return true;
+    }
+
+    /**
+     * Returns hash of the current record. The array is reused by the next record.
+     *
+     * @return hash bytes
+     */
+    @Override
+    public byte[] hash() {
+        return hash;
+    }
+
+    /**
+     * Returns path of the current record.
+     *
+     * @return path as it was written by the walk
+     */
+    @Override
+    public String path() {
+        return new String(path, 0, pathLength, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer block(int index) throws IOException {
+        pathLength = 0;
+        if (windows != null) {
+            int window = blockWindows[index];
+            ByteBuffer mapped = windows.get(window).duplicate();
+            mapped.limit((int) (blocks[index + 1] - windowOffsets[window]));
+            mapped.position((int) (blocks[index] - windowOffsets[window]));
+            return mapped;
+        }
+        int length = (int) (blocks[index + 1] - blocks[index]);
+        if (readBuffer == null || readBuffer.capacity() < length) {
+            readBuffer = ByteBuffer.allocate(Math.max(length, 1 << 16));
+        }
+        readBuffer.clear().limit(length);
+        readFully(readBuffer, blocks[index]);
+        readBuffer.flip();
+        return readBuffer;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IOException("Not a binary manifest: " + file);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Truncated binary manifest: " + file);
+            }
+            position += read;
+        }
+    }
+
+    private int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed binary manifest: " + file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
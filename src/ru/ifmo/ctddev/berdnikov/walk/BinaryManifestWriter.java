@@ -0,0 +1,147 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes manifest in a compact binary format, read by {@link BinaryManifestReader}.
+ * <p>
+ * The file starts with a header: magic number, name of the hash algorithm (varint
+ * length and UTF-8 bytes), hash length and number of records per block, both as ints.
+ * Records follow in walk order, grouped into blocks of {@link #BLOCK_RECORDS}. A record
+ * is front-coded against the previous path: varint length of the prefix shared with it,
+ * varint length of the rest, the rest of the UTF-8 path and then the hash in its fixed
+ * width. Paths in one directory share the whole directory prefix, so mostly file names
+ * are stored. The first record of a block shares nothing, so every block can be decoded
+ * on its own.
+ * <p>
+ * After the records goes the block index: offset of every block as a long. The file
+ * ends with the number of records, offset of the index, both as longs, and the magic
+ * number again.
+ */
+class BinaryManifestWriter implements ManifestSink {
+    static final int MAGIC = 0x574d4231;
+    static final int BLOCK_RECORDS = 1024;
+    /**
+     * Length of the file tail: number of records, index offset and magic.
+     */
+    static final int TRAILER_SIZE = 8 + 8 + 4;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final int hashLength;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long flushed;
+    private long records;
+    private long[] blocks = new long[64];
+    private int blockCount;
+    private byte[] previous = new byte[0];
+
+    /**
+     * Creates writer to given file. File is created or truncated.
+     *
+     * @param file manifest file
+     * @param algorithm name of the algorithm of hashes to be written
+     * @param hashLength length of hashes in bytes
+     * @throws IOException if file can't be opened
+     */
+    BinaryManifestWriter(Path file, String algorithm, int hashLength) throws IOException {
+        this.channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE);
+        this.hashLength = hashLength;
+        byte[] name = algorithm.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(MAGIC);
+        putVarint(name.length);
+        buffer.put(name);
+        buffer.putInt(hashLength);
+        buffer.putInt(BLOCK_RECORDS);
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        write(hash, file.toString());
+    }
+
+    /**
+     * Writes record of a directory, its path ends with a separator as in the text format.
+     */
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        write(hash, dir.toString() + File.separator);
+    }
+
+    private void write(byte[] hash, String file) throws IOException {
+        if (hash.length != hashLength) {
+            throw new IllegalArgumentException("Hash of " + hash.length + " bytes in manifest of " + hashLength + " byte hashes");
+        }
+        byte[] path = file.getBytes(StandardCharsets.UTF_8);
+        ensure(2 * 5 + path.length + hashLength);
+        int shared = 0;
+        if (records % BLOCK_RECORDS == 0) {
+            if (blockCount == blocks.length) {
+                blocks = Arrays.copyOf(blocks, 2 * blockCount);
+            }
+            blocks[blockCount++] = flushed + buffer.position();
+        } else {
+            int max = Math.min(previous.length, path.length);
+            while (shared < max && previous[shared] == path[shared]) {
+                shared++;
+            }
+        }
+        putVarint(shared);
+        putVarint(path.length - shared);
+        buffer.put(path, shared, path.length - shared);
+        buffer.put(hash);
+        previous = path;
+        records++;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) (0x80 | (value & 0x7f)));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+            if (buffer.remaining() < length) {
+                throw new IOException("Record of " + length + " bytes doesn't fit into buffer");
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long indexOffset = flushed + buffer.position();
+            for (int i = 0; i < blockCount; i++) {
+                ensure(8);
+                buffer.putLong(blocks[i]);
+            }
+            ensure(TRAILER_SIZE);
+            buffer.putLong(records);
+            buffer.putLong(indexOffset);
+            buffer.putInt(MAGIC);
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Progress of a walk saved by {@link CheckpointSink}: the input root being walked, the
+ * last file written for it and the length of the manifest written up to that file.
+ * <p>
+ * The file holds a magic number, input file and hash algorithm of the walk, both in
+ * <tt>writeUTF</tt> form, number of the root line, manifest length and the last path
+ * (int length and UTF-8 bytes, length <tt>-1</tt> if nothing of the root is written yet).
+ */
+class Checkpoint {
+    private static final int MAGIC = 0x57434b31;
+
+    /**
+     * Input file of the walk.
+     */
+    final String input;
+    /**
+     * Algorithm of hashes in the manifest.
+     */
+    final String algorithm;
+    /**
+     * Number of the root line, counting from zero, whose walk is not complete.
+     */
+    final long root;
+    /**
+     * Length of the manifest in bytes, all of them written and forced to disk.
+     */
+    final long bytes;
+    /**
+     * Last file of the root which is written, <tt>null</tt> if none.
+     */
+    final Path last;
+
+    Checkpoint(String input, String algorithm, long root, long bytes, Path last) {
+        this.input = input;
+        this.algorithm = algorithm;
+        this.root = root;
+        this.bytes = bytes;
+        this.last = last;
+    }
+
+    /**
+     * Loads checkpoint.
+     *
+     * @param file checkpoint file
+     * @return loaded checkpoint, <tt>null</tt> if file doesn't exist
+     * @throws IOException if file can't be read or is malformed
+     */
+    static Checkpoint load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + file);
+            }
+            String input = in.readUTF();
+            String algorithm = in.readUTF();
+            long root = in.readLong();
+            long bytes = in.readLong();
+            int length = in.readInt();
+            Path last = null;
+            if (length >= 0) {
+                byte[] path = new byte[length];
+                in.readFully(path);
+                last = Paths.get(new String(path, StandardCharsets.UTF_8));
+            }
+            return new Checkpoint(input, algorithm, root, bytes, last);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (EOFException e) {
+            throw new IOException("Truncated checkpoint: " + file);
+        }
+    }
+
+    /**
+     * Atomically replaces checkpoint file with this checkpoint.
+     *
+     * @param file checkpoint file
+     * @throws IOException if checkpoint can't be written
+     */
+    void save(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(input);
+                out.writeUTF(algorithm);
+                out.writeLong(root);
+                out.writeLong(bytes);
+                if (last == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] path = last.toString().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(path.length);
+                    out.write(path);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
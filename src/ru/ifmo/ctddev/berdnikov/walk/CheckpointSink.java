@@ -0,0 +1,126 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ManifestSink} which periodically forces the manifest to disk and saves a {@link Checkpoint}.
+ * <p>
+ * Results come in walk order from the walking thread, so after every line the written part of
+ * the manifest ends exactly at the last file, and a checkpoint records its length together with
+ * the root and the file. A root line (the line of a file root or the zero line of an aborted
+ * root) completes its root. A run resumed from a checkpoint truncates the manifest to the saved
+ * length and continues after the saved file, see {@link ResumePoint}.
+ */
+class CheckpointSink implements ManifestSink {
+    private final ManifestWriter writer;
+    private final Path file;
+    private final String input;
+    private final String algorithm;
+    private final long interval;
+    private long nextSave;
+    private long root;
+    private Path rootPath;
+    private Path last;
+
+    /**
+     * Creates sink.
+     *
+     * @param writer text manifest, appended to if the run is resumed
+     * @param file checkpoint file
+     * @param input input file of the walk
+     * @param algorithm algorithm of hashes, resumed runs must use the same
+     * @param interval interval between checkpoints in seconds
+     */
+    CheckpointSink(ManifestWriter writer, Path file, String input, String algorithm, long interval) {
+        this.writer = writer;
+        this.file = file;
+        this.input = input;
+        this.algorithm = algorithm;
+        this.interval = TimeUnit.SECONDS.toNanos(interval);
+        this.nextSave = System.nanoTime() + this.interval;
+    }
+
+    /**
+     * Starts the walk of a root.
+     *
+     * @param index number of the root line
+     * @param root root whose files are written next
+     * @throws IOException if checkpoint can't be saved
+     */
+    void beginRoot(long index, Path root) throws IOException {
+        this.root = index;
+        this.rootPath = root;
+        this.last = null;
+        saveIfDue();
+    }
+
+    /**
+     * Completes the walk of the current root.
+     *
+     * @throws IOException if checkpoint can't be saved
+     */
+    void endRoot() throws IOException {
+        if (rootPath != null) {
+            root++;
+            rootPath = null;
+            last = null;
+        }
+        saveIfDue();
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        writer.write(hash, file);
+        if (file.equals(rootPath)) {
+            endRoot();
+        } else {
+            last = file;
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Never called: directory lines come from <tt>--merkle</tt>, which {@link WalkOptions} rejects
+     * with <tt>--checkpoint</tt>, as hashes of directories above the resume point can't be rebuilt
+     * from a partial walk.
+     */
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        throw new UnsupportedOperationException("Directory hashes are not checkpointed");
+    }
+
+    private void saveIfDue() throws IOException {
+        if (System.nanoTime() - nextSave >= 0) {
+            save();
+        }
+    }
+
+    /**
+     * Forces the manifest to disk and saves checkpoint.
+     *
+     * @throws IOException if manifest or checkpoint can't be written
+     */
+    void save() throws IOException {
+        writer.commit();
+        new Checkpoint(input, algorithm, root, writer.size(), last).save(file);
+        nextSave = System.nanoTime() + interval;
+    }
+
+    /**
+     * Forces the complete manifest to disk and deletes checkpoint, so the next run starts from the beginning.
+     *
+     * @throws IOException if manifest can't be written or checkpoint can't be deleted
+     */
+    void finish() throws IOException {
+        writer.commit();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,125 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Walk of roots on several devices, each device served by its own {@link ParallelWalker}.
+ * <p>
+ * Roots are grouped by their {@link FileStore}. Every device has its own number of threads:
+ * a spinning disk is best read by a few threads, while an SSD needs many reads in flight.
+ * Roots whose store can't be found, such as missing ones, share one more walker.
+ * <p>
+ * Results are written in input order by the calling thread, so the output is identical
+ * to the sequential walk. The next {@link #ROOT_WINDOW} roots are started at once, but a
+ * root running ahead of its turn stops once {@link ParallelWalker#PENDING_PER_THREAD} tasks
+ * per thread of its device are started and not written. So a root on another device only
+ * prefetches about <tt>64 * threads</tt> files and directories while it waits: roots smaller
+ * than that are walked in the shadow of the one being written, while larger trees are still
+ * walked one after another, and wall time is about the sum of the times of their devices.
+ * Memory is bounded by the number of roots in the window, however large their trees are.
+ */
+class DeviceWalker {
+    /**
+     * Number of roots, counting the one being written, which are walked at once.
+     */
+    static final int ROOT_WINDOW = 16;
+    private final int threads;
+    private final Map<FileStore, Integer> limits = new HashMap<>();
+    private final Map<FileStore, ParallelWalker> walkers = new HashMap<>();
+    private final ManifestSink writer;
+    private final FileHasher hasher;
+    private final WalkMetrics metrics;
+    private PathFilter filter;
+
+    /**
+     * Creates walker.
+     *
+     * @param threads number of threads per device
+     * @param limits numbers of threads for devices of given paths, overriding <tt>threads</tt>
+     * @param writer output
+     * @param hasher hasher of files
+     * @param metrics metrics of the walk, <tt>null</tt> if not collected
+     * @throws IOException if store of some path in <tt>limits</tt> can't be found
+     */
+    DeviceWalker(int threads, Map<Path, Integer> limits, ManifestSink writer, FileHasher hasher, WalkMetrics metrics) throws IOException {
+        this.threads = threads;
+        for (Map.Entry<Path, Integer> limit : limits.entrySet()) {
+            this.limits.put(Files.getFileStore(limit.getKey()), limit.getValue());
+        }
+        this.writer = writer;
+        this.hasher = hasher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets filter of entries of roots started later.
+     *
+     * @param filter filter, <tt>null</tt> to walk everything
+     */
+    void filter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Starts the walk of the tree rooted at given path on the walker of its device.
+     *
+     * @param root root of the tree
+     * @param resume point to resume the walk from, <tt>null</tt> to walk the whole tree
+     * @return started walk to give to {@link #write(Started)}
+     */
+    Started start(Path root, ResumePoint resume) {
+        FileStore store;
+        try {
+            store = Files.getFileStore(root);
+        } catch (IOException e) {
+            store = null;
+        }
+        ParallelWalker walker = walkers.get(store);
+        if (walker == null) {
+            int storeThreads = store != null ? limits.getOrDefault(store, threads) : threads;
+            walker = new ParallelWalker(storeThreads, writer, hasher, metrics);
+            walkers.put(store, walker);
+        }
+        walker.filter(filter);
+        return new Started(walker, root, walker.start(root, resume));
+    }
+
+    /**
+     * Waits for given walk and writes hashes of its tree.
+     *
+     * @param started walk returned by {@link #start(Path, ResumePoint)}
+     * @throws IOException if output can't be written
+     */
+    void write(Started started) throws IOException {
+        started.walker.write(started.root, started.walk);
+    }
+
+    /**
+     * Stops worker threads of all devices. Tasks already submitted are completed.
+     */
+    void shutdown() {
+        for (ParallelWalker walker : walkers.values()) {
+            walker.shutdown();
+        }
+    }
+
+    /**
+     * Walk of one root started on the walker of its device.
+     */
+    static class Started {
+        private final ParallelWalker walker;
+        private final Path root;
+        private final ParallelWalker.Walk walk;
+
+        private Started(ParallelWalker walker, Path root, ParallelWalker.Walk walk) {
+            this.walker = walker;
+            this.root = root;
+            this.walk = walk;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Long-running walk which keeps the manifest up to date.
+ * <p>
+ * Roots are walked once, every visited directory is registered in a {@link WatchService}
+ * and the tree is kept in memory. Paths reported by watch events are collected and,
+ * <tt>latency</tt> milliseconds after the first of them, only these paths are re-hashed.
+ * A created directory or a directory whose events overflowed is re-scanned with its
+ * subtree only.
+ * <p>
+ * The manifest itself is not patched: after every batch of changes it is written anew
+ * from the tree in memory and atomically replaced, so each update costs time proportional
+ * to the whole manifest, and <tt>latency</tt> bounds only the wait before re-hashing,
+ * not the time until the new manifest appears.
+ * <p>
+ * The first manifest is identical to the one written by the sequential walk.
+ */
+class DirectoryWatcher {
+    private final List<Root> roots = new ArrayList<>();
+    private final Path output;
+    private final FileHasher hasher;
+    private final HashCache cache;
+    private final long latency;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Map<Path, Node> directories = new HashMap<>();
+    private final Map<Path, Root> fileRoots = new HashMap<>();
+    private final Set<Path> pending = new LinkedHashSet<>();
+
+    /**
+     * Creates watcher of given roots.
+     *
+     * @param roots roots in input file order
+     * @param output manifest file
+     * @param hasher source of file hashes
+     * @param cache hash cache to save after the first walk, may be <tt>null</tt>
+     * @param latency delay in milliseconds between the first change of a batch and its re-hashing
+     * @throws IOException if watch service can't be created
+     */
+    DirectoryWatcher(List<Path> roots, Path output, FileHasher hasher, HashCache cache, long latency) throws IOException {
+        for (Path root : roots) {
+            this.roots.add(new Root(root));
+        }
+        this.output = output;
+        this.hasher = hasher;
+        this.cache = cache;
+        this.latency = latency;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Walks all roots, writes the first manifest and then follows changes until
+     * the thread is interrupted.
+     *
+     * @throws IOException if manifest can't be written
+     */
+    void run() throws IOException {
+        for (Root root : roots) {
+            scan(root);
+        }
+        writeManifest();
+        if (cache != null) {
+            cache.save();
+        }
+        try {
+            long deadline = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    key = watchService.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (key != null) {
+                    boolean wasEmpty = pending.isEmpty();
+                    collect(key);
+                    if (wasEmpty && !pending.isEmpty()) {
+                        deadline = System.currentTimeMillis() + latency;
+                    }
+                }
+                if (!pending.isEmpty() && System.currentTimeMillis() >= deadline) {
+                    for (Path path : pending) {
+                        refresh(path);
+                    }
+                    pending.clear();
+                    writeManifest();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } finally {
+            watchService.close();
+        }
+    }
+
+    private void collect(WatchKey key) {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            if (event.kind() == OVERFLOW) {
+                pending.add(dir);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_MODIFY && directories.containsKey(path)) {
+                // changes inside a subdirectory are reported by its own key
+                continue;
+            }
+            pending.add(path);
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+            if (dir != null) {
+                // a deleted root has no watched parent to report it
+                pending.add(dir);
+            }
+        }
+    }
+
+    /**
+     * Brings node of given path in line with the file system.
+     */
+    private void refresh(Path path) {
+        Root fileRoot = fileRoots.get(path);
+        if (fileRoot != null) {
+            scan(fileRoot);
+        }
+        for (Root root : roots) {
+            if (root.path.equals(path)) {
+                scan(root);
+            }
+        }
+        Node parent = directories.get(path.getParent());
+        if (parent == null) {
+            // parent is gone or will be scanned as a whole
+            return;
+        }
+        Path name = path.getFileName();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            forget(parent.children.remove(name));
+            return;
+        }
+        // an existing entry is replaced in place, so it keeps its position in walk order
+        Node old = parent.children.get(name);
+        forget(old);
+        if (attrs.isDirectory()) {
+            Scanner scanner = new Scanner(parent);
+            try {
+                Files.walkFileTree(path, scanner);
+            } catch (IOException e) {
+                // keep what was scanned, events will bring the rest
+            }
+            if (old != null && parent.children.get(name) == old) {
+                // the directory was not even entered
+                parent.children.remove(name);
+            }
+        } else {
+            parent.children.put(name, new Node(path, RecursiveWalk.Walker.countHash(path, attrs, hasher)));
+        }
+    }
+
+    private void scan(Root root) {
+        forget(root.node);
+        root.node = null;
+        root.failed = false;
+        Scanner scanner = new Scanner(null);
+        try {
+            Files.walkFileTree(root.path, scanner);
+        } catch (IOException e) {
+            root.failed = true;
+        }
+        root.node = scanner.top;
+        if (root.node != null && root.node.children == null) {
+            watchFileRoot(root);
+        }
+    }
+
+    private void watchFileRoot(Root root) {
+        Path parent = root.path.getParent();
+        if (parent == null) {
+            parent = root.path.toAbsolutePath().getParent();
+        }
+        Path watched = parent.resolve(root.path.getFileName());
+        if (fileRoots.containsKey(watched)) {
+            return;
+        }
+        try {
+            keys.put(parent.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), parent);
+            fileRoots.put(watched, root);
+        } catch (IOException e) {
+            // root won't be updated
+        }
+    }
+
+    private void forget(Node node) {
+        if (node == null || node.children == null) {
+            return;
+        }
+        directories.remove(node.path);
+        for (Node child : node.children.values()) {
+            forget(child);
+        }
+    }
+
+    /**
+     * Writes all lines of the tree to a temporary file and moves it over the manifest.
+     */
+    private void writeManifest() throws IOException {
+        Path dir = output.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, output.getFileName().toString(), ".tmp");
+        try {
+            try (ManifestWriter writer = new ManifestWriter(temp)) {
+                for (Root root : roots) {
+                    write(writer, root.node);
+                    if (root.failed) {
+                        writer.write(new byte[hasher.length()], root.path);
+                    }
+                }
+            }
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void write(ManifestWriter writer, Node node) throws IOException {
+        if (node == null) {
+            return;
+        }
+        if (node.children == null) {
+            writer.write(node.hash, node.path);
+            return;
+        }
+        for (Node child : node.children.values()) {
+            write(writer, child);
+        }
+    }
+
+    private static class Root {
+        private final Path path;
+        private Node node;
+        private boolean failed;
+
+        Root(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * File with its hash or directory with its entries in walk order.
+     */
+    private static class Node {
+        private final Path path;
+        private final byte[] hash;
+        private final Map<Path, Node> children;
+
+        Node(Path path, byte[] hash) {
+            this.path = path;
+            this.hash = hash;
+            this.children = null;
+        }
+
+        Node(Path path) {
+            this.path = path;
+            this.hash = null;
+            this.children = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Builds nodes of a subtree and registers its directories.
+     */
+    private class Scanner extends SimpleFileVisitor<Path> {
+        private final Deque<Node> stack = new ArrayDeque<>();
+        private Node top;
+
+        Scanner(Node parent) {
+            if (parent != null) {
+                stack.push(parent);
+            }
+        }
+
+        private void add(Node node) {
+            if (stack.isEmpty()) {
+                top = node;
+            } else {
+                stack.peek().children.put(node.path.getFileName(), node);
+            }
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            Node node = new Node(dir);
+            add(node);
+            stack.push(node);
+            directories.put(dir, node);
+            try {
+                keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+            } catch (IOException e) {
+                // still hashed, but changes in it are not followed
+            }
+            return CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            add(new Node(file, RecursiveWalk.Walker.countHash(file, attrs, hasher)));
+            return CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (exc != null) {
+                throw exc;
+            }
+            stack.pop();
+            return CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+
+/**
+ * Finds groups of regular files with identical contents.
+ * <p>
+ * Files are grouped by size first, so a file of unique size is never read. Files of
+ * equal size are split by hash of their first and last {@link #SAMPLE} bytes, and only
+ * files which still have a pair are hashed in full. Files not longer than two samples
+ * are read completely by the first pass, so their sample hash is the full one. Hashes may
+ * collide, so files with equal hashes are finally compared byte by byte, and only files with
+ * identical contents make a group.
+ * <p>
+ * Groups are written largest files first, one line <tt>hash path</tt> per file in walk
+ * order, with an empty line after each group.
+ */
+class DuplicateFinder {
+    static final int SAMPLE = 4096;
+    private static final int COMPARE_BUFFER = 1 << 16;
+    private static final byte[] SAME = {1};
+    private static final byte[] DIFFERENT = {0};
+    private static final byte[] FAILED = {2};
+
+    private final FileHasher hasher;
+    private final IoThrottle throttle;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<HashProvider.Hasher> sampleHashers;
+    private final ThreadLocal<ByteBuffer> sampleBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(SAMPLE));
+    private final ThreadLocal<ByteBuffer[]> compareBuffers = ThreadLocal.withInitial(() ->
+            new ByteBuffer[]{ByteBuffer.allocate(COMPARE_BUFFER), ByteBuffer.allocate(COMPARE_BUFFER)});
+
+    private final Map<Long, List<Path>> bySize = new HashMap<>();
+    private PathFilter filter;
+    private long files;
+    private long totalBytes;
+    private final AtomicLong hashedBytes = new AtomicLong();
+    private final AtomicLong comparedBytes = new AtomicLong();
+
+    /**
+     * Creates finder.
+     *
+     * @param hasher source of full hashes
+     * @param provider algorithm of sample hashes, the same as of <tt>hasher</tt>
+     * @param threads number of threads hashing files, <tt>0</tt> to hash in the calling thread
+     */
+    DuplicateFinder(FileHasher hasher, HashProvider provider, int threads) {
+        this(hasher, provider, threads, IoThrottle.UNLIMITED);
+    }
+
+    /**
+     * Creates finder whose sample reads are limited.
+     *
+     * @param hasher source of full hashes, limited on its own
+     * @param provider algorithm of sample hashes, the same as of <tt>hasher</tt>
+     * @param threads number of threads hashing files, <tt>0</tt> to hash in the calling thread
+     * @param throttle limits of sample reads and opens
+     */
+    DuplicateFinder(FileHasher hasher, HashProvider provider, int threads, IoThrottle throttle) {
+        this.hasher = hasher;
+        this.throttle = throttle;
+        this.pool = threads > 0 ? new ForkJoinPool(threads) : null;
+        this.sampleHashers = ThreadLocal.withInitial(provider::newHasher);
+    }
+
+    /**
+     * Sets filter of entries of the following roots.
+     *
+     * @param filter filter, <tt>null</tt> to collect everything
+     */
+    void filter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Collects sizes of all regular files under given root. Entries which can't be
+     * visited or are skipped by the filter are skipped.
+     *
+     * @param root root of the tree
+     * @throws IOException if walk fails
+     */
+    void add(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return filter != null && filter.skipDirectory(root, dir) ? SKIP_SUBTREE : CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && (filter == null || !filter.skipFile(root, file))) {
+                    bySize.computeIfAbsent(attrs.size(), size -> new ArrayList<>(1)).add(file);
+                    files++;
+                    totalBytes += attrs.size();
+                }
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                return CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Hashes candidates and writes groups of duplicates.
+     *
+     * @param writer output
+     * @throws IOException if output can't be written
+     */
+    void write(ManifestWriter writer) throws IOException {
+        List<Long> sizes = new ArrayList<>();
+        for (Map.Entry<Long, List<Path>> e : bySize.entrySet()) {
+            if (e.getValue().size() > 1) {
+                sizes.add(e.getKey());
+            }
+        }
+        sizes.sort(Comparator.reverseOrder());
+        long groups = 0;
+        long duplicates = 0;
+        long wasted = 0;
+        for (long size : sizes) {
+            for (Map.Entry<ByteBuffer, List<Path>> sampled : group(bySize.remove(size), this::sampleHash).entrySet()) {
+                if (sampled.getValue().size() < 2) {
+                    continue;
+                }
+                Map<ByteBuffer, List<Path>> identical = size <= 2 * SAMPLE
+                        ? Collections.singletonMap(sampled.getKey(), sampled.getValue())
+                        : group(sampled.getValue(), this::fullHash);
+                for (Map.Entry<ByteBuffer, List<Path>> group : identical.entrySet()) {
+                    if (group.getValue().size() < 2) {
+                        continue;
+                    }
+                    for (List<Path> members : confirm(group.getValue())) {
+                        for (Path file : members) {
+                            writer.write(group.getKey().array(), file);
+                        }
+                        writer.newLine();
+                        groups++;
+                        duplicates += members.size() - 1;
+                        wasted += (members.size() - 1) * size;
+                    }
+                }
+            }
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        System.err.format("Duplicates: %d groups, %d redundant files, %d redundant bytes; hashed %d of %d bytes in %d files, compared %d bytes%n",
+                groups, duplicates, wasted, hashedBytes.get(), totalBytes, files, comparedBytes.get());
+    }
+
+    private interface Hash {
+        byte[] hash(Path file) throws IOException;
+    }
+
+    /**
+     * Groups files by given hash in walk order, dropping unreadable files.
+     */
+    private Map<ByteBuffer, List<Path>> group(List<Path> files, Hash function) throws IOException {
+        byte[][] hashes = new byte[files.size()][];
+        Runnable task = () -> {
+            IntStream indices = IntStream.range(0, files.size());
+            (pool != null ? indices.parallel() : indices).forEach(i -> {
+                try {
+                    hashes[i] = function.hash(files.get(i));
+                } catch (IOException e) {
+                    // unreadable file is nobody's duplicate
+                }
+            });
+        };
+        if (pool != null) {
+            try {
+                pool.submit(task).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        } else {
+            task.run();
+        }
+        Map<ByteBuffer, List<Path>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != null) {
+                groups.computeIfAbsent(ByteBuffer.wrap(hashes[i]), h -> new ArrayList<>()).add(files.get(i));
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Splits files with equal hashes into groups of identical contents, in walk order, dropping
+     * files identical to no other and unreadable ones. Each round compares the remaining files
+     * with the first of them; as hashes rarely collide, one round is the usual case. A file whose
+     * comparison failed, which may be the fault of the first file, stays for the next round, and
+     * the first file leaves the remaining ones in any case, so an unreadable file costs a round
+     * rather than its group.
+     */
+    private List<List<Path>> confirm(List<Path> files) throws IOException {
+        List<List<Path>> confirmed = new ArrayList<>();
+        List<Path> remaining = files;
+        while (remaining.size() > 1) {
+            Path first = remaining.get(0);
+            List<Path> others = remaining.subList(1, remaining.size());
+            Map<ByteBuffer, List<Path>> split = group(others, file -> {
+                try {
+                    return sameContents(first, file) ? SAME : DIFFERENT;
+                } catch (IOException e) {
+                    return FAILED;
+                }
+            });
+            List<Path> same = split.getOrDefault(ByteBuffer.wrap(SAME), Collections.emptyList());
+            if (!same.isEmpty()) {
+                List<Path> members = new ArrayList<>(same.size() + 1);
+                members.add(first);
+                members.addAll(same);
+                confirmed.add(members);
+            }
+            Set<Path> matched = new HashSet<>(same);
+            remaining = new ArrayList<>(others.size() - same.size());
+            for (Path file : others) {
+                if (!matched.contains(file)) {
+                    remaining.add(file);
+                }
+            }
+        }
+        return confirmed;
+    }
+
+    private boolean sameContents(Path a, Path b) throws IOException {
+        ByteBuffer[] buffers = compareBuffers.get();
+        throttle.acquireOpen();
+        throttle.acquireOpen();
+        try (FileChannel first = FileChannel.open(a, StandardOpenOption.READ);
+             FileChannel second = FileChannel.open(b, StandardOpenOption.READ)) {
+            if (first.size() != second.size()) {
+                return false;
+            }
+            for (long position = 0; position < first.size(); position += COMPARE_BUFFER) {
+                int length = (int) Math.min(COMPARE_BUFFER, first.size() - position);
+                throttle.acquireBytes(2L * length);
+                readFully(first, position, length, buffers[0]);
+                readFully(second, position, length, buffers[1]);
+                comparedBytes.addAndGet(2L * length);
+                if (!buffers[0].equals(buffers[1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void readFully(FileChannel channel, long position, int length, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("File shrank while reading");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Hashes first and last {@link #SAMPLE} bytes of file, that is the whole file if it is short.
+     */
+    private byte[] sampleHash(Path file) throws IOException {
+        HashProvider.Hasher sampleHasher = sampleHashers.get();
+        ByteBuffer buffer = sampleBuffers.get();
+        throttle.acquireOpen();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long head = Math.min(SAMPLE, size);
+            long tail = Math.max(head, size - SAMPLE);
+            read(channel, 0, head, buffer, sampleHasher);
+            read(channel, tail, size - tail, buffer, sampleHasher);
+        } catch (IOException e) {
+            sampleHasher.digest();
+            throw e;
+        }
+        return sampleHasher.digest();
+    }
+
+    private void read(FileChannel channel, long position, long length, ByteBuffer buffer, HashProvider.Hasher sampleHasher) throws IOException {
+        throttle.acquireBytes(length);
+        buffer.clear().limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("File shrank while reading");
+            }
+        }
+        hashedBytes.addAndGet(length);
+        buffer.flip();
+        sampleHasher.update(buffer);
+    }
+
+    private byte[] fullHash(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        hashedBytes.addAndGet(attrs.size());
+        return hasher.hash(file, attrs);
+    }
+}
@@ -0,0 +1,28 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Source of file hashes used by walkers: {@link HashEngine} reads files,
+ * other implementations wrap it to avoid reading.
+ */
+interface FileHasher {
+    /**
+     * Returns hash of given file contents.
+     *
+     * @param file file to hash
+     * @param attrs attributes of file read during the walk
+     * @return hash of {@link #length()} bytes
+     * @throws IOException if file can't be read
+     */
+    byte[] hash(Path file, BasicFileAttributes attrs) throws IOException;
+
+    /**
+     * Returns length of hashes in bytes.
+     *
+     * @return length of hashes
+     */
+    int length();
+}
@@ -0,0 +1,117 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Counts fingerprints of files: hash of the size and of {@link #SAMPLE} bytes at the start,
+ * in the middle and at the end, read by positioned reads. Files up to three samples long
+ * are hashed whole.
+ * <p>
+ * At most three reads per file are made whatever its size, so a walk runs at nearly the speed
+ * of reading metadata. A fingerprint only detects changes of size or of sampled bytes, so it
+ * is never written as a plain hash: text lines start with {@link #TEXT_PREFIX} and binary
+ * manifests name the algorithm with {@link #ALGORITHM_PREFIX}.
+ */
+class FingerprintHasher implements FileHasher {
+    static final int SAMPLE = 1 << 16;
+    /**
+     * Prefix of fingerprints in text manifests.
+     */
+    static final String TEXT_PREFIX = "fp:";
+    /**
+     * Prefix of the algorithm name of fingerprints in binary manifests.
+     */
+    static final String ALGORITHM_PREFIX = "fingerprint-";
+
+    private final HashProvider provider;
+    private final IoThrottle throttle;
+    private final Queue<Scratch> scratches = new ConcurrentLinkedQueue<>();
+
+    FingerprintHasher(HashProvider provider, IoThrottle throttle) {
+        this.provider = provider;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Returns algorithm name of fingerprints made by given hash algorithm.
+     *
+     * @param provider hash algorithm
+     * @return name for manifest headers
+     */
+    static String algorithm(HashProvider provider) {
+        return ALGORITHM_PREFIX + provider.name();
+    }
+
+    @Override
+    public int length() {
+        return provider.length();
+    }
+
+    @Override
+    public byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+        Scratch scratch = scratches.poll();
+        if (scratch == null) {
+            scratch = new Scratch(provider.newHasher());
+        }
+        HashProvider.Hasher hasher = scratch.hasher;
+        ByteBuffer buffer = scratch.buffer;
+        boolean digested = false;
+        try (FileChannel channel = open(file)) {
+            long size = channel.size();
+            buffer.clear();
+            buffer.putLong(size).flip();
+            hasher.update(buffer);
+            if (size <= 3L * SAMPLE) {
+                for (long position = 0; position < size; position += SAMPLE) {
+                    read(channel, position, Math.min(SAMPLE, size - position), buffer, hasher);
+                }
+            } else {
+                read(channel, 0, SAMPLE, buffer, hasher);
+                read(channel, size / 2 - SAMPLE / 2, SAMPLE, buffer, hasher);
+                read(channel, size - SAMPLE, SAMPLE, buffer, hasher);
+            }
+            byte[] hash = hasher.digest();
+            digested = true;
+            return hash;
+        } finally {
+            if (!digested) {
+                // drop partial state of whatever failed, the hasher is reused for the next file
+                hasher.digest();
+            }
+            scratches.offer(scratch);
+        }
+    }
+
+    private FileChannel open(Path file) throws IOException {
+        throttle.acquireOpen();
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    private void read(FileChannel channel, long position, long length, ByteBuffer buffer, HashProvider.Hasher hasher) throws IOException {
+        throttle.acquireBytes(length);
+        buffer.clear().limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("File shrank while reading");
+            }
+        }
+        buffer.flip();
+        hasher.update(buffer);
+    }
+
+    private static class Scratch {
+        private final ByteBuffer buffer = ByteBuffer.allocate(SAMPLE);
+        private final HashProvider.Hasher hasher;
+
+        Scratch(HashProvider.Hasher hasher) {
+            this.hasher = hasher;
+        }
+    }
+}
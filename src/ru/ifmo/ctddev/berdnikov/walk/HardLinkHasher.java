@@ -0,0 +1,231 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link FileHasher} which reads every inode once per run.
+ * <p>
+ * Hashes are remembered by {@link BasicFileAttributes#fileKey()}, so later hard links
+ * to an already hashed inode reuse its hash. Where the <tt>unix</tt> attribute view is
+ * supported, only inodes with more than one link are remembered, other files can't be met
+ * again. Seen inodes are kept in an open addressing table of primitive arrays: inode number,
+ * index of device and hash take <tt>12 + hash length</tt> bytes per entry, with no objects
+ * per entry. Hashes are kept in chunks of {@link #CHUNK_SLOTS} slots, so offsets never
+ * overflow; once the table has {@link #MAX_CAPACITY} slots, new inodes are not remembered.
+ * Lookups share a read lock, only insertions take the write lock.
+ * <p>
+ * In parallel walks two links of one inode may be hashed at the same time, then
+ * both of them are read.
+ */
+class HardLinkHasher implements FileHasher {
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    /**
+     * Number of slots whose hashes are kept in one array.
+     */
+    static final int CHUNK_SLOTS = 1 << 16;
+    /**
+     * Maximal number of slots of the table.
+     */
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private final FileHasher hasher;
+    private final int hashLength;
+    private final boolean links = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private final Map<Long, Integer> devices = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long[] inodes;
+    /**
+     * Index of device plus one, <tt>0</tt> marks an empty slot.
+     */
+    private int[] deviceIndices;
+    private byte[][] hashes;
+    private int size;
+
+    private final AtomicLong reusedFiles = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    HardLinkHasher(FileHasher hasher) {
+        this.hasher = hasher;
+        this.hashLength = hasher.length();
+        allocate(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+        Object fileKey = attrs.fileKey();
+        if (attrs.isSymbolicLink() || fileKey == null || attrs.size() == 0 || !multipleLinks(file)) {
+            return hasher.hash(file, attrs);
+        }
+        String key = fileKey.toString();
+        long device = device(key);
+        long inode = inode(key);
+        byte[] hash = get(device, inode);
+        if (hash != null) {
+            reusedFiles.incrementAndGet();
+            savedBytes.addAndGet(attrs.size());
+            return hash;
+        }
+        hash = hasher.hash(file, attrs);
+        put(device, inode, hash);
+        return hash;
+    }
+
+    @Override
+    public int length() {
+        return hashLength;
+    }
+
+    /**
+     * Returns number of files whose hash was taken from an earlier link.
+     *
+     * @return number of reused hashes
+     */
+    long reusedFiles() {
+        return reusedFiles.get();
+    }
+
+    /**
+     * Returns total size of files whose hash was taken from an earlier link.
+     *
+     * @return number of bytes not read
+     */
+    long savedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * Returns whether file may have other links, <tt>true</tt> if the number of links is unknown.
+     */
+    private boolean multipleLinks(Path file) {
+        if (!links) {
+            return true;
+        }
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS) > 1;
+        } catch (IOException | RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Parses device from file key of the form <tt>(dev=hex,ino=decimal)</tt> used on Unix.
+     * Keys of other forms are told apart by their string hash only.
+     */
+    static long device(String key) {
+        int ino = key.indexOf(",ino=");
+        if (key.startsWith("(dev=") && ino > 0) {
+            try {
+                return Long.parseUnsignedLong(key.substring(5, ino), 16);
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return -1;
+    }
+
+    static long inode(String key) {
+        int ino = key.indexOf(",ino=");
+        if (key.startsWith("(dev=") && ino > 0 && key.endsWith(")")) {
+            try {
+                return Long.parseUnsignedLong(key.substring(ino + 5, key.length() - 1));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return HashCache.fileKeyId(key);
+    }
+
+    private void allocate(int capacity) {
+        inodes = new long[capacity];
+        deviceIndices = new int[capacity];
+        hashes = new byte[(capacity + CHUNK_SLOTS - 1) / CHUNK_SLOTS][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = new byte[Math.min(capacity, CHUNK_SLOTS) * hashLength];
+        }
+    }
+
+    private int slot(long inode, int device, int mask) {
+        long h = (inode ^ ((long) device << 48)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private byte[] get(long device, long inode) {
+        lock.readLock().lock();
+        try {
+            Integer index = devices.get(device);
+            if (index == null) {
+                return null;
+            }
+            int mask = inodes.length - 1;
+            for (int i = slot(inode, index, mask); deviceIndices[i] != 0; i = (i + 1) & mask) {
+                if (inodes[i] == inode && deviceIndices[i] == index) {
+                    byte[] hash = new byte[hashLength];
+                    System.arraycopy(hashes[i / CHUNK_SLOTS], (i % CHUNK_SLOTS) * hashLength, hash, 0, hashLength);
+                    return hash;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void put(long device, long inode, byte[] hash) {
+        lock.writeLock().lock();
+        try {
+            Integer index = devices.get(device);
+            if (index == null) {
+                index = devices.size() + 1;
+                devices.put(device, index);
+            }
+            if (4L * (size + 1) > 3L * inodes.length) {
+                if (inodes.length == MAX_CAPACITY) {
+                    return;
+                }
+                grow();
+            }
+            if (insert(inode, index, hash, 0)) {
+                size++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean insert(long inode, int device, byte[] from, int offset) {
+        int mask = inodes.length - 1;
+        int i = slot(inode, device, mask);
+        for (; deviceIndices[i] != 0; i = (i + 1) & mask) {
+            if (inodes[i] == inode && deviceIndices[i] == device) {
+                return false;
+            }
+        }
+        inodes[i] = inode;
+        deviceIndices[i] = device;
+        System.arraycopy(from, offset, hashes[i / CHUNK_SLOTS], (i % CHUNK_SLOTS) * hashLength, hashLength);
+        return true;
+    }
+
+    private void grow() {
+        long[] oldInodes = inodes;
+        int[] oldDevices = deviceIndices;
+        byte[][] oldHashes = hashes;
+        allocate(oldInodes.length * 2);
+        for (int i = 0; i < oldInodes.length; i++) {
+            if (oldDevices[i] != 0) {
+                insert(oldInodes[i], oldDevices[i], oldHashes[i / CHUNK_SLOTS], (i % CHUNK_SLOTS) * hashLength);
+            }
+        }
+    }
+}
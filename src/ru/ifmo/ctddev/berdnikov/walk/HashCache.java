@@ -0,0 +1,330 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent cache of file hashes, so a walk over an unchanged tree only stats files.
+ * <p>
+ * An entry is keyed by device and inode and is valid while size and modification time
+ * of the file stay the same, so all hard links of a file share one entry. On file systems
+ * without file keys the absolute path, packed by {@link #fileKeyId(Object)}, stands for the inode.
+ * Entries are kept in an open addressing table of primitive arrays like the one of
+ * {@link HardLinkHasher}: <tt>29 + hash length</tt> bytes per entry, with no paths and
+ * no objects per entry.
+ * <p>
+ * The whole cache is loaded at the start of a run; at the end it is rewritten through
+ * a temporary file which atomically replaces the old one. Entries of files not seen in
+ * this run, as of filtered out, resumed past or deleted ones, are carried over, and are
+ * dropped only when not seen in {@link #MAX_AGE} runs in a row.
+ * <p>
+ * File format: magic number, name of hash algorithm and number of entries, then entries.
+ * Each entry is device, inode, size, modification time in nanoseconds, number of runs
+ * it was not seen in and hash. A cache written for another algorithm or by the older,
+ * path keyed format is ignored.
+ */
+class HashCache implements FileHasher {
+    private static final int MAGIC = 0x57484333;
+    private static final int PATH_KEYED_MAGIC = 0x57484332;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    /**
+     * Device of entries keyed by path, on file systems without file keys.
+     */
+    private static final long NO_DEVICE = -2;
+    /**
+     * Entries not seen in more runs in a row are not saved.
+     */
+    static final int MAX_AGE = 16;
+
+    private final Path file;
+    private final HashEngine engine;
+    private final int hashLength;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Integer> deviceIndices = new HashMap<>();
+    private long[] deviceIds = new long[4];
+    /**
+     * Files modified after this moment may change again within the same
+     * timestamp tick after being hashed, so they are not saved.
+     */
+    private final long startTime;
+
+    private long[] inodes;
+    /**
+     * Index of device plus one, <tt>0</tt> marks an empty slot.
+     */
+    private int[] devices;
+    private long[] sizes;
+    private long[] modified;
+    /**
+     * Number of runs the entry was not seen in, <tt>0</tt> once it is seen in this run.
+     */
+    private byte[] ages;
+    private byte[][] hashes;
+    private int size;
+
+    private HashCache(Path file, HashEngine engine) {
+        this.file = file;
+        this.engine = engine;
+        this.hashLength = engine.length();
+        this.startTime = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - 1000);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Loads cache from given file. Missing file gives an empty cache.
+     *
+     * @param file cache file
+     * @param engine engine which hashes files missing in cache
+     * @return loaded cache
+     * @throws IOException if cache file can't be read or is malformed
+     */
+    static HashCache load(Path file, HashEngine engine) throws IOException {
+        HashCache cache = new HashCache(file, engine);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            int magic = in.readInt();
+            if (magic == PATH_KEYED_MAGIC) {
+                return cache;
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not a hash cache: " + file);
+            }
+            if (!in.readUTF().equals(engine.provider().name())) {
+                return cache;
+            }
+            long count = in.readLong();
+            byte[] hash = new byte[cache.hashLength];
+            for (long i = 0; i < count; i++) {
+                long device = in.readLong();
+                long inode = in.readLong();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int age = in.readUnsignedByte();
+                in.readFully(hash);
+                cache.put(device, inode, size, modified, Math.min(age + 1, Byte.MAX_VALUE), hash);
+            }
+        } catch (NoSuchFileException e) {
+            return new HashCache(file, engine);
+        } catch (EOFException e) {
+            throw new IOException("Truncated hash cache: " + file);
+        }
+        return cache;
+    }
+
+    /**
+     * Returns hash of given file, reading it only if cached entry is missing or stale.
+     *
+     * @param path file to hash
+     * @param attrs attributes of file read during the walk
+     * @return hash of file contents
+     * @throws IOException if file has to be read and can't be
+     */
+    @Override
+    public byte[] hash(Path path, BasicFileAttributes attrs) throws IOException {
+        if (attrs.isSymbolicLink()) {
+            // attributes belong to the link, not to the contents being hashed
+            return engine.hash(path);
+        }
+        Object fileKey = attrs.fileKey();
+        long device;
+        long inode;
+        if (fileKey != null) {
+            String key = fileKey.toString();
+            device = HardLinkHasher.device(key);
+            inode = HardLinkHasher.inode(key);
+        } else {
+            device = NO_DEVICE;
+            inode = fileKeyId(path.toAbsolutePath().toString());
+        }
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        byte[] hash = get(device, inode, size, modified);
+        if (hash != null) {
+            return hash;
+        }
+        hash = engine.hash(path);
+        if (modified < startTime) {
+            put(device, inode, size, modified, 0, hash);
+        }
+        return hash;
+    }
+
+    @Override
+    public int length() {
+        return hashLength;
+    }
+
+    /**
+     * Atomically replaces cache file with entries of files seen in this run and of files
+     * not seen in at most {@link #MAX_AGE} runs.
+     *
+     * @throws IOException if cache can't be written
+     */
+    void save() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        lock.readLock().lock();
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(engine.provider().name());
+                long count = 0;
+                for (int i = 0; i < devices.length; i++) {
+                    if (devices[i] != 0 && ages[i] <= MAX_AGE) {
+                        count++;
+                    }
+                }
+                out.writeLong(count);
+                for (int i = 0; i < devices.length; i++) {
+                    if (devices[i] != 0 && ages[i] <= MAX_AGE) {
+                        out.writeLong(deviceIds[devices[i] - 1]);
+                        out.writeLong(inodes[i]);
+                        out.writeLong(sizes[i]);
+                        out.writeLong(modified[i]);
+                        out.writeByte(ages[i]);
+                        out.write(hashes[i / HardLinkHasher.CHUNK_SLOTS], (i % HardLinkHasher.CHUNK_SLOTS) * hashLength, hashLength);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            lock.readLock().unlock();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Packs file key (device and inode on Unix) into 64 bits by FNV-1a over its string form.
+     *
+     * @param fileKey value of {@link BasicFileAttributes#fileKey()}, may be <tt>null</tt>
+     * @return file key id, <tt>0</tt> if file system has no file keys
+     */
+    static long fileKeyId(Object fileKey) {
+        if (fileKey == null) {
+            return 0;
+        }
+        String s = fileKey.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private void allocate(int capacity) {
+        inodes = new long[capacity];
+        devices = new int[capacity];
+        sizes = new long[capacity];
+        modified = new long[capacity];
+        ages = new byte[capacity];
+        hashes = new byte[(capacity + HardLinkHasher.CHUNK_SLOTS - 1) / HardLinkHasher.CHUNK_SLOTS][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = new byte[Math.min(capacity, HardLinkHasher.CHUNK_SLOTS) * hashLength];
+        }
+    }
+
+    private int slot(long inode, int device, int mask) {
+        long h = (inode ^ ((long) device << 48)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private int find(long inode, int device) {
+        int mask = inodes.length - 1;
+        int i = slot(inode, device, mask);
+        while (devices[i] != 0 && (inodes[i] != inode || devices[i] != device)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns cached hash of given inode if its size and modification time are the same.
+     */
+    private byte[] get(long device, long inode, long size, long modified) {
+        lock.readLock().lock();
+        try {
+            Integer index = deviceIndices.get(device);
+            if (index == null) {
+                return null;
+            }
+            int i = find(inode, index);
+            if (devices[i] == 0 || sizes[i] != size || this.modified[i] != modified) {
+                return null;
+            }
+            // every thread writes the same value, the write lock of the resize waits for readers
+            ages[i] = 0;
+            byte[] hash = new byte[hashLength];
+            System.arraycopy(hashes[i / HardLinkHasher.CHUNK_SLOTS], (i % HardLinkHasher.CHUNK_SLOTS) * hashLength, hash, 0, hashLength);
+            return hash;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds entry of given inode or replaces a stale one in place.
+     */
+    private void put(long device, long inode, long size, long modified, int age, byte[] hash) {
+        lock.writeLock().lock();
+        try {
+            Integer index = deviceIndices.get(device);
+            if (index == null) {
+                index = deviceIndices.size() + 1;
+                deviceIndices.put(device, index);
+                if (index > deviceIds.length) {
+                    deviceIds = Arrays.copyOf(deviceIds, deviceIds.length * 2);
+                }
+                deviceIds[index - 1] = device;
+            }
+            int i = find(inode, index);
+            if (devices[i] == 0) {
+                if (4L * (this.size + 1) > 3L * inodes.length) {
+                    if (inodes.length == HardLinkHasher.MAX_CAPACITY) {
+                        return;
+                    }
+                    grow();
+                    i = find(inode, index);
+                }
+                this.size++;
+            }
+            set(i, inode, index, size, modified, (byte) age, hash, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void set(int i, long inode, int device, long size, long modified, byte age, byte[] from, int offset) {
+        inodes[i] = inode;
+        devices[i] = device;
+        sizes[i] = size;
+        this.modified[i] = modified;
+        ages[i] = age;
+        System.arraycopy(from, offset, hashes[i / HardLinkHasher.CHUNK_SLOTS], (i % HardLinkHasher.CHUNK_SLOTS) * hashLength, hashLength);
+    }
+
+    private void grow() {
+        long[] oldInodes = inodes;
+        int[] oldDevices = devices;
+        long[] oldSizes = sizes;
+        long[] oldModified = modified;
+        byte[] oldAges = ages;
+        byte[][] oldHashes = hashes;
+        allocate(oldInodes.length * 2);
+        for (int i = 0; i < oldInodes.length; i++) {
+            if (oldDevices[i] != 0) {
+                set(find(oldInodes[i], oldDevices[i]), oldInodes[i], oldDevices[i], oldSizes[i], oldModified[i], oldAges[i],
+                        oldHashes[i / HardLinkHasher.CHUNK_SLOTS], (i % HardLinkHasher.CHUNK_SLOTS) * hashLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Counts hashes of file contents by given {@link HashProvider}.
+ * <p>
+ * The read path is chosen by file size: files smaller than {@link #MAP_THRESHOLD}
+ * are read by bulk reads into a heap buffer, larger ones are mapped into memory
+ * by {@link FileChannel#map} window by window. In both cases whole buffers are
+ * given to a {@link HashProvider.Hasher}.
+ * <p>
+ * Buffers and hashers are taken from a pool rather than from thread locals, so
+ * threads which hash a single file, such as virtual threads, reuse them too. The pool
+ * holds as many of them as files were hashed at the same time.
+ */
+class HashEngine implements FileHasher {
+    /**
+     * Files of this size and larger are memory mapped.
+     */
+    static final long MAP_THRESHOLD = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAP_WINDOW = 1 << 30;
+    /**
+     * Mapped windows are given to the hasher by slices of this size, so that reads can be throttled.
+     */
+    private static final int MAP_SLICE = 1 << 22;
+
+    private final HashProvider provider;
+    private final IoThrottle throttle;
+    private final Queue<Scratch> scratches = new ConcurrentLinkedQueue<>();
+
+    HashEngine(HashProvider provider) {
+        this(provider, IoThrottle.UNLIMITED);
+    }
+
+    HashEngine(HashProvider provider, IoThrottle throttle) {
+        this.provider = provider;
+        this.throttle = throttle;
+    }
+
+    HashProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public int length() {
+        return provider.length();
+    }
+
+    @Override
+    public byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+        return hash(file);
+    }
+
+    /**
+     * Counts hash of given file.
+     *
+     * @param file file to hash
+     * @return hash of file contents
+     * @throws IOException if file can't be read
+     */
+    byte[] hash(Path file) throws IOException {
+        Scratch scratch = scratches.poll();
+        if (scratch == null) {
+            scratch = new Scratch(provider.newHasher());
+        }
+        HashProvider.Hasher hasher = scratch.hasher;
+        boolean digested = false;
+        try (FileChannel channel = open(file)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                read(channel, scratch.buffer, hasher);
+            } else {
+                map(channel, size, hasher);
+            }
+            byte[] hash = hasher.digest();
+            digested = true;
+            return hash;
+        } finally {
+            if (!digested) {
+                // drop partial state of whatever failed, the hasher is reused for the next file
+                hasher.digest();
+            }
+            scratches.offer(scratch);
+        }
+    }
+
+    private FileChannel open(Path file) throws IOException {
+        throttle.acquireOpen();
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    private void read(FileChannel channel, ByteBuffer buffer, HashProvider.Hasher hasher) throws IOException {
+        buffer.clear();
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            throttle.acquireBytes(read);
+            buffer.flip();
+            hasher.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    private void map(FileChannel channel, long size, HashProvider.Hasher hasher) throws IOException {
+        for (long position = 0; position < size; position += MAP_WINDOW) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+            // pages are read while hashed, so the budget is taken slice by slice before hashing
+            for (int slice = 0; slice < buffer.capacity(); slice += MAP_SLICE) {
+                int limit = Math.min(buffer.capacity(), slice + MAP_SLICE);
+                throttle.acquireBytes(limit - slice);
+                buffer.limit(limit).position(slice);
+                try {
+                    hasher.update(buffer);
+                } catch (InternalError e) {
+                    // SIGBUS on a page past the end of a file truncated while mapped
+                    throw new IOException("File was truncated while being read", e);
+                }
+            }
+        }
+    }
+
+    private static class Scratch {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final HashProvider.Hasher hasher;
+
+        Scratch(HashProvider.Hasher hasher) {
+            this.hasher = hasher;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hash algorithm which {@link RecursiveWalk} can use for file contents.
+ * <p>
+ * Built-in algorithms are listed in {@link HashProviders}. Other implementations are
+ * found by {@link java.util.ServiceLoader}, so they can be added by putting a jar with
+ * <tt>META-INF/services/ru.ifmo.ctddev.berdnikov.walk.HashProvider</tt> on the class path.
+ */
+public interface HashProvider {
+    /**
+     * Returns name by which algorithm is chosen on the command line.
+     *
+     * @return name of algorithm
+     */
+    String name();
+
+    /**
+     * Returns length of hashes in bytes.
+     *
+     * @return length of hashes
+     */
+    int length();
+
+    /**
+     * Creates new hash state. Hashers are used by one thread at a time and reused
+     * for many files.
+     *
+     * @return new hasher
+     */
+    Hasher newHasher();
+
+    /**
+     * Streaming hash state.
+     */
+    interface Hasher {
+        /**
+         * Hashes remaining bytes of given buffer and moves its position to its limit.
+         *
+         * @param buffer next part of the data
+         */
+        void update(ByteBuffer buffer);
+
+        /**
+         * Returns hash of all data given since creation or previous digest
+         * and resets the state.
+         *
+         * @return big-endian hash of {@link HashProvider#length()} bytes
+         */
+        byte[] digest();
+    }
+}
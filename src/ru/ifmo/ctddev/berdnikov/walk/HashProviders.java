@@ -0,0 +1,306 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.zip.CRC32C;
+
+/**
+ * Registry of {@link HashProvider}s.
+ * <p>
+ * Built-in algorithms:
+ * <ul>
+ * <li><tt>fnv1-32</tt> &mdash; 32-bit FNV-1, the default one;
+ * <li><tt>fnv1a-64</tt> &mdash; 64-bit FNV-1a;
+ * <li><tt>crc32c</tt> &mdash; CRC-32C, computed by hardware instructions where JVM has an intrinsic;
+ * <li><tt>xxhash64</tt> &mdash; 64-bit xxHash with zero seed;
+ * <li><tt>sha-256</tt> &mdash; SHA-256 of {@link MessageDigest}.
+ * </ul>
+ */
+final class HashProviders {
+    static final HashProvider FNV1_32 = provider("fnv1-32", 4, Fnv1Hasher::new);
+    static final HashProvider DEFAULT = FNV1_32;
+
+    private static final Map<String, HashProvider> providers = new LinkedHashMap<>();
+
+    static {
+        register(FNV1_32);
+        register(provider("fnv1a-64", 8, Fnv1a64Hasher::new));
+        register(provider("crc32c", 4, Crc32cHasher::new));
+        register(provider("xxhash64", 8, XxHash64Hasher::new));
+        register(provider("sha-256", 32, Sha256Hasher::new));
+        for (HashProvider provider : ServiceLoader.load(HashProvider.class)) {
+            providers.putIfAbsent(provider.name(), provider);
+        }
+    }
+
+    private HashProviders() {}
+
+    private static void register(HashProvider provider) {
+        providers.put(provider.name(), provider);
+    }
+
+    /**
+     * Returns provider with given name.
+     *
+     * @param name name of algorithm
+     * @return provider of the algorithm
+     * @throws IllegalArgumentException if there is no such algorithm
+     */
+    static HashProvider forName(String name) {
+        HashProvider provider = providers.get(name);
+        if (provider == null) {
+            throw new IllegalArgumentException("unknown hash algorithm " + name + ", known are " + providers.keySet());
+        }
+        return provider;
+    }
+
+    private interface HasherFactory {
+        HashProvider.Hasher create();
+    }
+
+    private static HashProvider provider(String name, int length, HasherFactory factory) {
+        return new HashProvider() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public Hasher newHasher() {
+                return factory.create();
+            }
+        };
+    }
+
+    private static byte[] toBytes(long value, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = length - 1; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    private static class Fnv1Hasher implements HashProvider.Hasher {
+        private static final int X0 = 0x811c9dc5;
+        private static final int FNV_32_PRIME = 0x01000193;
+
+        private int h = X0;
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            int h = this.h;
+            int limit = buffer.limit();
+            if (buffer.hasArray()) {
+                byte[] bytes = buffer.array();
+                int offset = buffer.arrayOffset();
+                for (int i = offset + buffer.position(), end = offset + limit; i < end; i++) {
+                    h = (h * FNV_32_PRIME) ^ (bytes[i] & 0xff);
+                }
+            } else {
+                for (int i = buffer.position(); i < limit; i++) {
+                    h = (h * FNV_32_PRIME) ^ (buffer.get(i) & 0xff);
+                }
+            }
+            buffer.position(limit);
+            this.h = h;
+        }
+
+        @Override
+        public byte[] digest() {
+            byte[] result = toBytes(h, 4);
+            h = X0;
+            return result;
+        }
+    }
+
+    private static class Fnv1a64Hasher implements HashProvider.Hasher {
+        private static final long X0 = 0xcbf29ce484222325L;
+        private static final long FNV_64_PRIME = 0x100000001b3L;
+
+        private long h = X0;
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            long h = this.h;
+            int limit = buffer.limit();
+            if (buffer.hasArray()) {
+                byte[] bytes = buffer.array();
+                int offset = buffer.arrayOffset();
+                for (int i = offset + buffer.position(), end = offset + limit; i < end; i++) {
+                    h = (h ^ (bytes[i] & 0xff)) * FNV_64_PRIME;
+                }
+            } else {
+                for (int i = buffer.position(); i < limit; i++) {
+                    h = (h ^ (buffer.get(i) & 0xff)) * FNV_64_PRIME;
+                }
+            }
+            buffer.position(limit);
+            this.h = h;
+        }
+
+        @Override
+        public byte[] digest() {
+            byte[] result = toBytes(h, 8);
+            h = X0;
+            return result;
+        }
+    }
+
+    private static class Crc32cHasher implements HashProvider.Hasher {
+        private final CRC32C crc = new CRC32C();
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            crc.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            byte[] result = toBytes(crc.getValue(), 4);
+            crc.reset();
+            return result;
+        }
+    }
+
+    private static class Sha256Hasher implements HashProvider.Hasher {
+        private final MessageDigest digest;
+
+        Sha256Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("SHA-256 is supported by every JVM", e);
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            return digest.digest();
+        }
+    }
+
+    /**
+     * Streaming XXH64: input is consumed by 32-byte stripes, a tail shorter than
+     * a stripe is kept in {@link #stripe} until more data comes or digest is asked.
+     */
+    private static class XxHash64Hasher implements HashProvider.Hasher {
+        private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME64_3 = 0x165667B19E3779F9L;
+        private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+        private final ByteBuffer stripe = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        private long v1;
+        private long v2;
+        private long v3;
+        private long v4;
+        private long total;
+
+        XxHash64Hasher() {
+            reset();
+        }
+
+        private void reset() {
+            v1 = PRIME64_1 + PRIME64_2;
+            v2 = PRIME64_2;
+            v3 = 0;
+            v4 = -PRIME64_1;
+            total = 0;
+            stripe.clear();
+        }
+
+        private static long round(long acc, long input) {
+            return Long.rotateLeft(acc + input * PRIME64_2, 31) * PRIME64_1;
+        }
+
+        private static long mergeRound(long acc, long val) {
+            return (acc ^ round(0, val)) * PRIME64_1 + PRIME64_4;
+        }
+
+        private void consume(ByteBuffer b, int i) {
+            v1 = round(v1, b.getLong(i));
+            v2 = round(v2, b.getLong(i + 8));
+            v3 = round(v3, b.getLong(i + 16));
+            v4 = round(v4, b.getLong(i + 24));
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            total += buffer.remaining();
+            if (stripe.position() > 0) {
+                while (stripe.hasRemaining() && buffer.hasRemaining()) {
+                    stripe.put(buffer.get());
+                }
+                if (stripe.hasRemaining()) {
+                    return;
+                }
+                consume(stripe, 0);
+                stripe.clear();
+            }
+            ByteOrder order = buffer.order();
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int i = buffer.position();
+            int limit = buffer.limit();
+            for (; i + 32 <= limit; i += 32) {
+                consume(buffer, i);
+            }
+            buffer.position(i);
+            buffer.order(order);
+            stripe.put(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            long h;
+            if (total >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = PRIME64_5;
+            }
+            h += total;
+            int i = 0;
+            int length = stripe.position();
+            for (; i + 8 <= length; i += 8) {
+                h ^= round(0, stripe.getLong(i));
+                h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+            }
+            if (i + 4 <= length) {
+                h ^= (stripe.getInt(i) & 0xffffffffL) * PRIME64_1;
+                h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+                i += 4;
+            }
+            for (; i < length; i++) {
+                h ^= (stripe.get(i) & 0xff) * PRIME64_5;
+                h = Long.rotateLeft(h, 11) * PRIME64_1;
+            }
+            h ^= h >>> 33;
+            h *= PRIME64_2;
+            h ^= h >>> 29;
+            h *= PRIME64_3;
+            h ^= h >>> 32;
+            reset();
+            return toBytes(h, 8);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walk of a tree embedded in another program: files are given as {@link WalkRecord}s
+ * instead of lines of a manifest.
+ * <pre>
+ * HashWalk walk = new HashWalk("xxhash64");
+ * try (Stream&lt;WalkRecord&gt; records = walk.stream(Paths.get("/srv/artifacts"))) {
+ *     records.filter(record -&gt; record.size() &gt; 0).forEach(index::add);
+ * }
+ * </pre>
+ * Both the {@link Stream} and the {@link Flow.Publisher} are lazy: a directory is listed when
+ * the walk reaches it and a file is hashed when its record is consumed, so only the open
+ * directories on the way from the root are kept, whatever the size of the tree. Files come
+ * in the order of the sequential walk of {@link RecursiveWalk}.
+ * <p>
+ * Records can't be taken back once given, so unlike {@link RecursiveWalk}, which writes a zero
+ * hash for the root when some entry can't be visited, an entry which can't be read or listed
+ * gets its own record with a zero hash, and the walk goes on.
+ * <p>
+ * A walk may be shared by threads, each stream or subscription walks the tree anew.
+ */
+public final class HashWalk {
+    private final HashEngine engine;
+    private final PathFilter filter;
+
+    /**
+     * Creates walk hashing files by the default algorithm.
+     */
+    public HashWalk() {
+        this(HashProviders.DEFAULT.name());
+    }
+
+    /**
+     * Creates walk hashing files by given algorithm.
+     *
+     * @param algorithm name of algorithm, as given to <tt>--hash</tt>
+     * @throws IllegalArgumentException if there is no such algorithm
+     */
+    public HashWalk(String algorithm) {
+        this(algorithm, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Creates walk hashing files by given algorithm and skipping entries by given rules.
+     *
+     * @param algorithm name of algorithm, as given to <tt>--hash</tt>
+     * @param includes rules as given to <tt>--include</tt>, empty to include all files
+     * @param excludes rules as given to <tt>--exclude</tt>
+     * @throws IllegalArgumentException if there is no such algorithm or a rule is malformed
+     */
+    public HashWalk(String algorithm, List<String> includes, List<String> excludes) {
+        this.engine = new HashEngine(HashProviders.forName(algorithm));
+        this.filter = includes.isEmpty() && excludes.isEmpty() ? null : new PathFilter(includes, excludes);
+    }
+
+    /**
+     * Returns length of hashes in bytes.
+     *
+     * @return length of hashes
+     */
+    public int hashLength() {
+        return engine.length();
+    }
+
+    /**
+     * Returns lazy stream of files of the tree rooted at given path. The stream holds open
+     * directories, so it should be closed, as by try-with-resources.
+     * <p>
+     * A sequential stream hashes files on the consuming thread one by one. A parallel one hashes
+     * them on the common pool, taking batches of entries from the walk, so it keeps more of them
+     * in memory.
+     *
+     * @param root root of the tree, a file gives a single record
+     * @return stream of records
+     */
+    public Stream<WalkRecord> stream(Path root) {
+        Entries entries = new Entries(root);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(entries, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .map(this::record)
+                .onClose(entries::close);
+    }
+
+    /**
+     * Returns publisher of files of the tree rooted at given path. Every subscriber gets its own
+     * walk, run on given executor: files are hashed only as records are requested, one task
+     * at a time per subscriber, and the walk stops on cancellation.
+     *
+     * @param root root of the tree, a file gives a single record
+     * @param executor executor of walks
+     * @return publisher of records
+     */
+    public Flow.Publisher<WalkRecord> publisher(Path root, Executor executor) {
+        return subscriber -> {
+            Subscription subscription = new Subscription(subscriber, new Entries(root), executor);
+            subscriber.onSubscribe(subscription);
+        };
+    }
+
+    private WalkRecord record(Entry entry) {
+        byte[] hash = entry.attrs == null
+                ? new byte[engine.length()]
+                : RecursiveWalk.Walker.countHash(entry.path, entry.attrs, engine);
+        return new WalkRecord(entry.path, entry.attrs == null ? 0 : entry.attrs.size(), hash);
+    }
+
+    /**
+     * File to hash, with <tt>null</tt> attributes if the entry can't be read or listed.
+     */
+    private static class Entry {
+        private final Path path;
+        private final BasicFileAttributes attrs;
+
+        Entry(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * Files of a tree in the order of {@link Files#walkFileTree(Path, FileVisitor)},
+     * with a stack of streams of the open directories.
+     */
+    private class Entries implements Iterator<Entry>, Closeable {
+        private final Path root;
+        private final Deque<Listing> open = new ArrayDeque<>();
+        private boolean started;
+        private Entry next;
+
+        Entries(Path root) {
+            this.root = root;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        private Entry advance() {
+            if (!started) {
+                started = true;
+                Entry entry = visit(root);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            while (!open.isEmpty()) {
+                Listing listing = open.peek();
+                Path path;
+                try {
+                    path = listing.iterator.hasNext() ? listing.iterator.next() : null;
+                } catch (DirectoryIteratorException e) {
+                    open.pop().close();
+                    return new Entry(listing.dir, null);
+                }
+                if (path == null) {
+                    open.pop().close();
+                    continue;
+                }
+                Entry entry = visit(path);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns entry of given file, or opens given directory and returns <tt>null</tt>.
+         */
+        private Entry visit(Path path) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                return new Entry(path, null);
+            }
+            if (!attrs.isDirectory()) {
+                return filter != null && filter.skipFile(root, path) ? null : new Entry(path, attrs);
+            }
+            if (filter != null && filter.skipDirectory(root, path)) {
+                return null;
+            }
+            try {
+                open.push(new Listing(path, Files.newDirectoryStream(path)));
+                return null;
+            } catch (IOException e) {
+                return new Entry(path, null);
+            }
+        }
+
+        @Override
+        public void close() {
+            while (!open.isEmpty()) {
+                open.pop().close();
+            }
+        }
+    }
+
+    private static class Listing {
+        private final Path dir;
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path> iterator;
+
+        Listing(Path dir, DirectoryStream<Path> stream) {
+            this.dir = dir;
+            this.stream = stream;
+            this.iterator = stream.iterator();
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+                // nothing was written through the stream
+            }
+        }
+    }
+
+    /**
+     * Subscription which walks on the executor while there is demand. Requests and cancellation
+     * only schedule a drain, and at most one drain runs at a time, so signals to the subscriber
+     * are never concurrent and the walk is touched by one thread at a time.
+     */
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super WalkRecord> subscriber;
+        private final Entries entries;
+        private final Executor executor;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger drains = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private boolean done;
+
+        Subscription(Flow.Subscriber<? super WalkRecord> subscriber, Entries entries, Executor executor) {
+            this.subscriber = subscriber;
+            this.entries = entries;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("non-positive request " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (drains.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RuntimeException e) {
+                    error = e;
+                    drain();
+                }
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                while (!done) {
+                    if (cancelled) {
+                        finish();
+                    } else if (error != null) {
+                        finish();
+                        subscriber.onError(error);
+                    } else if (demand.get() == 0) {
+                        break;
+                    } else if (!entries.hasNext()) {
+                        finish();
+                        subscriber.onComplete();
+                    } else {
+                        WalkRecord record = record(entries.next());
+                        demand.decrementAndGet();
+                        try {
+                            subscriber.onNext(record);
+                        } catch (RuntimeException e) {
+                            // a throwing subscriber is treated as cancelled
+                            finish();
+                        }
+                    }
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void finish() {
+            done = true;
+            entries.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Sequential walk which reads files of each directory in order of their inode numbers.
+ * <p>
+ * Directory streams of many file systems give entries in hash order, while inodes, and mostly
+ * the data of their files, are laid out in creation order. On a spinning disk reading in stream
+ * order then costs a seek per file. This walk lists a directory with attributes of all entries,
+ * hashes its regular files sorted by <tt>unix:ino</tt> and only then writes the hashes in stream
+ * order, descending into subdirectories where {@link Files#walkFileTree(Path, FileVisitor)} would.
+ * So the output is identical to the sequential walk, including the <tt>00000000 root</tt> line,
+ * and only the hashes of one directory per level are kept in memory. Where inode numbers are
+ * not available, files are read in stream order.
+ */
+class InodeOrderWalker {
+    private final ManifestSink writer;
+    private final FileHasher hasher;
+    private final WalkMetrics metrics;
+    private final boolean inodes;
+    private PathFilter filter;
+
+    InodeOrderWalker(ManifestSink writer, FileHasher hasher, WalkMetrics metrics) {
+        this.writer = writer;
+        this.hasher = hasher;
+        this.metrics = metrics;
+        this.inodes = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    }
+
+    /**
+     * Sets filter of entries of the following walks.
+     *
+     * @param filter filter, <tt>null</tt> to walk everything
+     */
+    void filter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Walks the tree rooted at given path and writes hashes of its files not written before given point.
+     *
+     * @param root root of the tree
+     * @param resume point to resume the walk from, <tt>null</tt> to walk the whole tree
+     * @throws IOException if output can't be written
+     */
+    void walk(Path root, ResumePoint resume) throws IOException {
+        boolean visited;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                visited = walkDirectory(root, root, resume);
+            } else {
+                long start = System.nanoTime();
+                write(root, RecursiveWalk.Walker.countHash(root, attrs, hasher), start);
+                visited = true;
+            }
+        } catch (IOException e) {
+            visited = false;
+        }
+        if (!visited) {
+            writer.write(new byte[hasher.length()], root);
+        }
+    }
+
+    /**
+     * Walks given directory.
+     *
+     * @return <tt>false</tt> if the walk of the current root must be aborted
+     */
+    private boolean walkDirectory(Path dir, Path root, ResumePoint resume) throws IOException {
+        if (metrics != null) {
+            metrics.directory();
+        }
+        List<Entry> entries = new ArrayList<>();
+        boolean failed = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (resume != null && resume.written(path)) {
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (filter != null && (attrs.isDirectory() ? filter.skipDirectory(root, path) : filter.skipFile(root, path))) {
+                    continue;
+                }
+                entries.add(new Entry(path, attrs));
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            failed = true;
+        }
+
+        Entry[] files = entries.stream().filter(entry -> !entry.attrs.isDirectory()).toArray(Entry[]::new);
+        if (inodes) {
+            for (Entry file : files) {
+                file.inode = inode(file);
+            }
+            Arrays.sort(files, Comparator.comparingLong(file -> file.inode));
+        }
+        for (Entry file : files) {
+            long start = System.nanoTime();
+            file.hash = RecursiveWalk.Walker.countHash(file.path, file.attrs, hasher);
+            file.nanos = System.nanoTime() - start;
+        }
+
+        for (Entry entry : entries) {
+            if (entry.attrs.isDirectory()) {
+                if (!walkDirectory(entry.path, root, resume)) {
+                    return false;
+                }
+            } else {
+                write(entry.path, entry.hash, System.nanoTime() - entry.nanos);
+                // written hash is not needed anymore, subdirectories may be large
+                entry.hash = null;
+            }
+        }
+        return !failed;
+    }
+
+    private static long inode(Entry file) {
+        if (file.attrs.isRegularFile()) {
+            // file keys of the default provider read as (dev=...,ino=...), which saves a stat per file
+            Object key = file.attrs.fileKey();
+            String text = key != null ? key.toString() : "";
+            int start = text.indexOf("ino=");
+            int end = text.indexOf(')', start);
+            try {
+                if (start >= 0 && end >= 0) {
+                    return Long.parseLong(text.substring(start + 4, end));
+                }
+                return (Long) Files.getAttribute(file.path, "unix:ino", LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException | RuntimeException e) {
+                // the file is read anyway, just not in its place
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes hash of file, <tt>start</tt> is shifted back by the time already spent on hashing.
+     */
+    private void write(Path file, byte[] hash, long start) throws IOException {
+        writer.write(hash, file);
+        if (metrics != null) {
+            metrics.visit(System.nanoTime() - start);
+        }
+    }
+
+    private static class Entry {
+        private final Path path;
+        private final BasicFileAttributes attrs;
+        private long inode;
+        private byte[] hash;
+        private long nanos;
+
+        Entry(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token buckets limiting bytes read per second and files opened per second by all hashing reads.
+ * <p>
+ * Each bucket is refilled at its rate and holds at most one second of it, so short bursts after
+ * idle time are served at once. A request larger than the tokens available is granted anyway and
+ * leaves the bucket in debt, and the caller sleeps until the debt would be repaid. So every thread
+ * waits only for its own share, large reads are not starved by small ones, and the total rate stays
+ * at the limit rather than below it. A rate of <tt>0</tt> means no limit.
+ * <p>
+ * Limits can be changed while the walk runs through a control file, see {@link #watch(Path)}.
+ */
+class IoThrottle {
+    /**
+     * Throttle without limits.
+     */
+    static final IoThrottle UNLIMITED = new IoThrottle(0, 0);
+    private static final long CONTROL_POLL_MILLIS = 1000;
+
+    private final Bucket bytes = new Bucket();
+    private final Bucket opens = new Bucket();
+
+    /**
+     * Creates throttle.
+     *
+     * @param bytesPerSecond limit of bytes read per second, <tt>0</tt> for no limit
+     * @param opensPerSecond limit of files opened per second, <tt>0</tt> for no limit
+     */
+    IoThrottle(long bytesPerSecond, long opensPerSecond) {
+        setLimits(bytesPerSecond, opensPerSecond);
+    }
+
+    /**
+     * Changes limits. Threads already waiting keep their waiting time.
+     *
+     * @param bytesPerSecond limit of bytes read per second, <tt>0</tt> for no limit
+     * @param opensPerSecond limit of files opened per second, <tt>0</tt> for no limit
+     */
+    void setLimits(long bytesPerSecond, long opensPerSecond) {
+        bytes.setRate(bytesPerSecond);
+        opens.setRate(opensPerSecond);
+    }
+
+    /**
+     * Waits until a file may be opened.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquireOpen() throws InterruptedIOException {
+        sleep(opens.take(1));
+    }
+
+    /**
+     * Waits until given number of bytes may be read.
+     *
+     * @param count number of bytes
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquireBytes(long count) throws InterruptedIOException {
+        sleep(bytes.take(count));
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for I/O budget");
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Starts a daemon thread which re-reads limits from given control file whenever it is modified.
+     * <p>
+     * The file holds lines <tt>bytes=&lt;amount&gt;</tt> and <tt>opens=&lt;amount&gt;</tt>, amounts
+     * are per second and may end with <tt>K</tt>, <tt>M</tt> or <tt>G</tt>. A missing line leaves
+     * its limit unchanged. A malformed file is reported and ignored.
+     *
+     * @param controlFile control file, which may be created later
+     */
+    void watch(Path controlFile) {
+        Thread thread = new Thread(() -> {
+            FileTime applied = null;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    FileTime modified = Files.getLastModifiedTime(controlFile);
+                    if (!modified.equals(applied)) {
+                        applied = modified;
+                        load(controlFile);
+                    }
+                } catch (NoSuchFileException e) {
+                    applied = null;
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.format("Error in I/O limits %s: %s%n", controlFile, e.getMessage());
+                }
+                try {
+                    Thread.sleep(CONTROL_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "io-limits");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void load(Path controlFile) throws IOException {
+        long bytesPerSecond = bytes.rate();
+        long opensPerSecond = opens.rate();
+        for (String line : Files.readAllLines(controlFile, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            String key = eq < 0 ? line : line.substring(0, eq).trim();
+            String value = eq < 0 ? "" : line.substring(eq + 1).trim();
+            if (key.equals("bytes")) {
+                bytesPerSecond = parseAmount(value);
+            } else if (key.equals("opens")) {
+                opensPerSecond = parseAmount(value);
+            } else {
+                throw new IllegalArgumentException("unknown limit " + key);
+            }
+        }
+        setLimits(bytesPerSecond, opensPerSecond);
+        System.err.format("I/O limits: %d bytes/s, %d opens/s%n", bytesPerSecond, opensPerSecond);
+    }
+
+    /**
+     * Parses non-negative amount with optional suffix <tt>K</tt>, <tt>M</tt> or <tt>G</tt> (powers of 1024).
+     *
+     * @param value amount
+     * @return parsed amount
+     * @throws IllegalArgumentException if value is malformed
+     */
+    static long parseAmount(String value) {
+        String digits = value;
+        int shift = 0;
+        if (!value.isEmpty()) {
+            int unit = "KMG".indexOf(Character.toUpperCase(value.charAt(value.length() - 1)));
+            if (unit >= 0) {
+                shift = 10 * (unit + 1);
+                digits = value.substring(0, value.length() - 1);
+            }
+        }
+        try {
+            long amount = Long.parseLong(digits);
+            if (amount < 0 || amount > (Long.MAX_VALUE >> shift)) {
+                throw new IllegalArgumentException("bad amount " + value);
+            }
+            return amount << shift;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad amount " + value);
+        }
+    }
+
+    private static class Bucket {
+        private long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        synchronized long rate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            tokens = Math.min(tokens, rate);
+        }
+
+        /**
+         * Takes tokens and returns nanoseconds to wait until the bucket is out of debt.
+         */
+        synchronized long take(long count) {
+            if (rate == 0) {
+                return 0;
+            }
+            refill();
+            tokens -= count;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            refilled = now;
+        }
+    }
+}
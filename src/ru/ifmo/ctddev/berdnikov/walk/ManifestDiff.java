@@ -0,0 +1,171 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link ManifestSink} which compares the walk with a previous manifest and writes only differences:
+ * lines <tt>A hash path</tt> for added files, <tt>D hash path</tt> for removed ones, with their old
+ * hash, and <tt>M hash path</tt> for changed ones, with their new hash.
+ * <p>
+ * Both manifests are read in one merge pass: every new line is paired with the next line of the
+ * previous manifest. Manifests of the same tree come in the same order apart from added and removed
+ * entries, so usually the paths are equal and nothing is kept. Otherwise lines wait in two maps
+ * until their path appears on the other side; what is left at the end is added or removed. So memory
+ * is proportional to the distance between the two streams rather than to the size of the manifests.
+ * Changed lines are written as found, removed and added ones by {@link #finish()}, which is called
+ * once the walk is complete. A diff closed without it, as after a failed walk, is left without them,
+ * since files not reached yet would be reported as removed.
+ */
+class ManifestDiff implements ManifestSink {
+    private final ManifestSource previous;
+    private final ManifestWriter writer;
+    private final Map<String, byte[]> removed = new LinkedHashMap<>();
+    private final Map<String, byte[]> added = new LinkedHashMap<>();
+    private boolean previousDone;
+    private boolean finished;
+    private long unchanged;
+    private long changed;
+    private long addedCount;
+    private long removedCount;
+
+    /**
+     * Creates diff. Hashes of the previous manifest should be checked by
+     * {@link #check(ManifestSource, String, boolean)} before the output is opened.
+     *
+     * @param previous previous manifest, closed with this diff
+     * @param writer output, closed with this diff
+     */
+    ManifestDiff(ManifestSource previous, ManifestWriter writer) {
+        this.previous = previous;
+        this.writer = writer;
+    }
+
+    /**
+     * Checks that hashes of the previous manifest can be compared with the new ones.
+     *
+     * @param previous previous manifest
+     * @param algorithm algorithm of new hashes, <tt>null</tt> if unknown
+     * @param fingerprints whether new hashes are fingerprints
+     * @throws IOException if hashes of the previous manifest are of another kind
+     */
+    static void check(ManifestSource previous, String algorithm, boolean fingerprints) throws IOException {
+        if (previous.fingerprints() != fingerprints
+                || algorithm != null && previous.algorithm() != null && !algorithm.equals(previous.algorithm())) {
+            throw new IOException("Previous manifest has hashes of another algorithm");
+        }
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        write(hash, file.toString());
+    }
+
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        write(hash, dir.toString() + File.separator);
+    }
+
+    /**
+     * Compares the next line of the new manifest.
+     *
+     * @param hash new hash
+     * @param path path as written to manifests
+     * @throws IOException if previous manifest can't be read or output can't be written
+     */
+    void write(byte[] hash, String path) throws IOException {
+        if (!previousDone && previous.next()) {
+            String previousPath = previous.path();
+            if (previousPath.equals(path)) {
+                compare(path, previous.hash(), hash);
+                return;
+            }
+            byte[] newHash = added.remove(previousPath);
+            if (newHash != null) {
+                compare(previousPath, previous.hash(), newHash);
+            } else {
+                removed.put(previousPath, previous.hash().clone());
+            }
+        } else {
+            previousDone = true;
+        }
+        byte[] oldHash = removed.remove(path);
+        if (oldHash != null) {
+            compare(path, oldHash, hash);
+        } else {
+            added.put(path, hash.clone());
+        }
+    }
+
+    private void compare(String path, byte[] oldHash, byte[] newHash) throws IOException {
+        if (oldHash.length != newHash.length) {
+            throw new IOException("Previous manifest has hashes of another length");
+        }
+        if (Arrays.equals(oldHash, newHash)) {
+            unchanged++;
+        } else {
+            changed++;
+            writer.write('M', newHash, path);
+        }
+    }
+
+    /**
+     * Reads the rest of the previous manifest and writes removed and added files.
+     * Must be called after the last line of a complete walk.
+     *
+     * @throws IOException if previous manifest can't be read or output can't be written
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : removed.entrySet()) {
+            removedCount++;
+            writer.write('D', entry.getValue(), entry.getKey());
+        }
+        removed.clear();
+        while (!previousDone && previous.next()) {
+            String previousPath = previous.path();
+            byte[] newHash = added.remove(previousPath);
+            if (newHash != null) {
+                compare(previousPath, previous.hash(), newHash);
+            } else {
+                removedCount++;
+                writer.write('D', previous.hash(), previousPath);
+            }
+        }
+        previousDone = true;
+        for (Map.Entry<String, byte[]> entry : added.entrySet()) {
+            addedCount++;
+            writer.write('A', entry.getValue(), entry.getKey());
+        }
+        added.clear();
+        finished = true;
+    }
+
+    /**
+     * Returns summary of the finished diff.
+     *
+     * @return numbers of added, removed, changed and unchanged files
+     */
+    String summary() {
+        return String.format("%d added, %d removed, %d changed, %d unchanged", addedCount, removedCount, changed, unchanged);
+    }
+
+    /**
+     * Closes both manifests. Unless {@link #finish()} was called, the output ends with the changed
+     * files found so far.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            previous.close();
+        } finally {
+            writer.close();
+        }
+    }
+}
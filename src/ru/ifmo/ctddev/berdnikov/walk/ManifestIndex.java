@@ -0,0 +1,239 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory mapped index of a manifest, written by {@link ManifestIndexWriter}, which finds the hash
+ * of a path and the paths with a hash by binary search, so a lookup reads <tt>O(log n)</tt> pages.
+ * <p>
+ * The file starts with a header: magic number, hash length as int, number of entries, offset of
+ * the path record offsets and offset of the hash section, as longs. Then follow path records sorted
+ * by UTF-8 bytes of paths: path length as unsigned short, path and hash; then offsets of path records
+ * as longs, in the same order; and then the hash section: fixed entries of hash and offset of the path
+ * record, sorted by hash and then by path. Paths are as in manifests, paths of directories end with a
+ * separator. A path listed twice in the manifest is found once by {@link #hash(String)}.
+ * <pre>
+ * try (ManifestIndex index = ManifestIndex.open(file)) {
+ *     byte[] hash = index.hash("/srv/app/lib/core.jar");
+ *     List&lt;String&gt; copies = index.paths(hash);
+ * }
+ * </pre>
+ * Lookups may run from several threads at once. From the command line, hashes of listed paths
+ * are found by <tt>--lookup</tt> of {@link RecursiveWalk}.
+ */
+class ManifestIndex implements Closeable {
+    static final int MAGIC = 0x574d4931;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+    /**
+     * Maximal length of UTF-8 path in the index.
+     */
+    static final int MAX_PATH = 0xffff;
+    private static final long MAP_WINDOW = 1 << 30;
+    /**
+     * Windows overlap by more than the longest record, so every record lies in the window of its start.
+     */
+    private static final int OVERLAP = 1 << 18;
+
+    private final FileChannel channel;
+    private final int hashLength;
+    private final long entries;
+    private final long offsetsStart;
+    private final long hashesStart;
+    private final MappedByteBuffer[] windows;
+
+    private ManifestIndex(Path file, FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+            // the header is read whole
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            throw new IOException("Not a manifest index: " + file);
+        }
+        hashLength = header.getInt();
+        entries = header.getLong();
+        offsetsStart = header.getLong();
+        hashesStart = header.getLong();
+        if (hashLength < 0 || hashLength > OVERLAP / 2 || entries < 0
+                || offsetsStart + 8 * entries != hashesStart || hashesStart + (hashLength + 8) * entries != size) {
+            throw new IOException("Malformed manifest index: " + file);
+        }
+        windows = new MappedByteBuffer[(int) ((size + MAP_WINDOW - 1) / MAP_WINDOW)];
+        for (int i = 0; i < windows.length; i++) {
+            long position = i * MAP_WINDOW;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW + OVERLAP, size - position));
+        }
+    }
+
+    /**
+     * Opens index.
+     *
+     * @param file index file
+     * @return opened index
+     * @throws IOException if file can't be read or is not a complete index
+     */
+    static ManifestIndex open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new ManifestIndex(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns number of entries, that is of lines of the manifest.
+     *
+     * @return number of entries
+     */
+    long size() {
+        return entries;
+    }
+
+    /**
+     * Returns length of hashes in bytes.
+     *
+     * @return hash length
+     */
+    int hashLength() {
+        return hashLength;
+    }
+
+    /**
+     * Finds hash of given path.
+     *
+     * @param path path as written to the manifest
+     * @return hash, <tt>null</tt> if the path is not in the manifest
+     */
+    byte[] hash(String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        long low = 0;
+        long high = entries;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long record = getLong(offsetsStart + 8 * middle);
+            int c = comparePath(record, key);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle;
+            } else {
+                byte[] hash = new byte[hashLength];
+                get(record + 2 + key.length, hash);
+                return hash;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds paths with given hash.
+     *
+     * @param hash hash of files
+     * @return paths sorted by their UTF-8 bytes, empty if no path has this hash
+     */
+    List<String> paths(byte[] hash) {
+        List<String> paths = new ArrayList<>();
+        if (hash.length != hashLength) {
+            return paths;
+        }
+        int entrySize = hashLength + 8;
+        long low = 0;
+        long high = entries;
+        byte[] current = new byte[hashLength];
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            get(hashesStart + entrySize * middle, current);
+            if (compare(current, hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (long i = low; i < entries; i++) {
+            long position = hashesStart + entrySize * i;
+            get(position, current);
+            if (compare(current, hash) != 0) {
+                break;
+            }
+            paths.add(path(getLong(position + hashLength)));
+        }
+        return paths;
+    }
+
+    private String path(long record) {
+        byte[] path = new byte[getShort(record) & 0xffff];
+        get(record + 2, path);
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    private int comparePath(long record, byte[] key) {
+        MappedByteBuffer window = window(record);
+        int offset = offset(record);
+        int length = window.getShort(offset) & 0xffff;
+        offset += 2;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int c = (window.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private MappedByteBuffer window(long position) {
+        return windows[(int) (position / MAP_WINDOW)];
+    }
+
+    private static int offset(long position) {
+        return (int) (position % MAP_WINDOW);
+    }
+
+    private long getLong(long position) {
+        return window(position).getLong(offset(position));
+    }
+
+    private short getShort(long position) {
+        return window(position).getShort(offset(position));
+    }
+
+    private void get(long position, byte[] bytes) {
+        MappedByteBuffer window = window(position);
+        int offset = offset(position);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = window.get(offset + i);
+        }
+    }
+
+    /**
+     * Compares byte arrays as unsigned, shorter prefix first.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,302 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * {@link ManifestSink} which passes lines on to the manifest and builds a {@link ManifestIndex} of them.
+ * <p>
+ * Lines are collected in runs of {@link #RUN_ENTRIES}, each sorted by path and spilled to a temporary
+ * file next to the index, so memory doesn't depend on the size of the manifest. On close the runs are
+ * merged into the path section of the index, while pairs of hash and path record offset are sorted
+ * by hash the same way into the hash section. The header is written last, so an index of an
+ * interrupted build is never taken for a complete one.
+ */
+class ManifestIndexWriter implements ManifestSink {
+    /**
+     * Number of entries sorted in memory at once.
+     */
+    static final int RUN_ENTRIES = 1 << 18;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ManifestSink sink;
+    private final Path file;
+    private final int hashLength;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private long count;
+
+    /**
+     * Creates index writer.
+     *
+     * @param sink manifest, closed with this writer
+     * @param file index file, created or replaced on close
+     * @param hashLength length of hashes in bytes
+     */
+    ManifestIndexWriter(ManifestSink sink, Path file, int hashLength) {
+        this.sink = sink;
+        this.file = file;
+        this.hashLength = hashLength;
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        sink.write(hash, file);
+        add(hash, file.toString());
+    }
+
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        sink.writeDirectory(hash, dir);
+        add(hash, dir.toString() + File.separator);
+    }
+
+    private void add(byte[] hash, String path) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > ManifestIndex.MAX_PATH) {
+            throw new IOException("Path is too long for the index: " + path);
+        }
+        entries.add(new Entry(bytes, hash.clone(), 0));
+        count++;
+        if (entries.size() == RUN_ENTRIES) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        entries.sort(Entry.BY_PATH);
+        Path run = Files.createTempFile(directory(), file.getFileName().toString(), ".run");
+        runs.add(run);
+        try (DataOutputStream out = output(run)) {
+            for (Entry entry : entries) {
+                out.writeShort(entry.path.length);
+                out.write(entry.path);
+                out.write(entry.hash);
+            }
+        }
+        entries.clear();
+    }
+
+    private Path directory() {
+        return file.toAbsolutePath().getParent();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            build();
+        } finally {
+            try {
+                sink.close();
+            } finally {
+                for (Path run : runs) {
+                    Files.deleteIfExists(run);
+                }
+            }
+        }
+    }
+
+    private void build() throws IOException {
+        if (!entries.isEmpty()) {
+            spill();
+        }
+        Path offsets = Files.createTempFile(directory(), file.getFileName().toString(), ".offsets");
+        HashRuns hashRuns = new HashRuns();
+        long pathsEnd;
+        try (DataOutputStream out = output(file)) {
+            out.write(new byte[ManifestIndex.HEADER_SIZE]);
+            long position = ManifestIndex.HEADER_SIZE;
+            try (DataOutputStream offsetsOut = output(offsets)) {
+                PriorityQueue<RunReader> queue = new PriorityQueue<>(Comparator.comparing((RunReader reader) -> reader.head, Entry.BY_PATH));
+                try {
+                    for (Path run : runs) {
+                        RunReader reader = new RunReader(input(run));
+                        if (reader.advance()) {
+                            queue.add(reader);
+                        }
+                    }
+                    RunReader reader;
+                    while ((reader = queue.poll()) != null) {
+                        Entry entry = reader.head;
+                        offsetsOut.writeLong(position);
+                        hashRuns.add(entry.hash, position);
+                        out.writeShort(entry.path.length);
+                        out.write(entry.path);
+                        out.write(entry.hash);
+                        position += 2 + entry.path.length + hashLength;
+                        if (reader.advance()) {
+                            queue.add(reader);
+                        }
+                    }
+                } finally {
+                    for (RunReader reader : queue) {
+                        reader.in.close();
+                    }
+                }
+            }
+            pathsEnd = position;
+            Files.copy(offsets, out);
+            hashRuns.writeTo(out);
+        } finally {
+            Files.deleteIfExists(offsets);
+            hashRuns.delete();
+        }
+        writeHeader(pathsEnd, pathsEnd + 8 * count);
+    }
+
+    private void writeHeader(long pathsEnd, long hashesStart) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(ManifestIndex.HEADER_SIZE);
+            header.putInt(ManifestIndex.MAGIC).putInt(hashLength).putLong(count).putLong(pathsEnd).putLong(hashesStart).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+    }
+
+    private static DataOutputStream output(Path path) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+    }
+
+    private static DataInputStream input(Path path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+    }
+
+    /**
+     * Entry of a run: path record, or hash with the offset of its path record.
+     */
+    private static class Entry {
+        private static final Comparator<Entry> BY_PATH = (a, b) -> ManifestIndex.compare(a.path, b.path);
+        private static final Comparator<Entry> BY_HASH = (a, b) -> {
+            int c = ManifestIndex.compare(a.hash, b.hash);
+            return c != 0 ? c : Long.compare(a.offset, b.offset);
+        };
+
+        private final byte[] path;
+        private final byte[] hash;
+        private final long offset;
+
+        Entry(byte[] path, byte[] hash, long offset) {
+            this.path = path;
+            this.hash = hash;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Reader of a spilled run, closed when exhausted.
+     */
+    private class RunReader {
+        private final DataInputStream in;
+        private Entry head;
+
+        RunReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        boolean advance() throws IOException {
+            int length;
+            try {
+                length = in.readUnsignedShort();
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+            byte[] path = new byte[length];
+            in.readFully(path);
+            byte[] hash = new byte[hashLength];
+            in.readFully(hash);
+            head = new Entry(path, hash, 0);
+            return true;
+        }
+    }
+
+    /**
+     * External sort of hash entries: fixed records of hash and path record offset.
+     */
+    private class HashRuns {
+        private final List<Path> files = new ArrayList<>();
+        private final List<Entry> run = new ArrayList<>();
+
+        void add(byte[] hash, long offset) throws IOException {
+            run.add(new Entry(null, hash, offset));
+            if (run.size() == RUN_ENTRIES) {
+                spill();
+            }
+        }
+
+        private void spill() throws IOException {
+            run.sort(Entry.BY_HASH);
+            Path path = Files.createTempFile(directory(), file.getFileName().toString(), ".hashes");
+            files.add(path);
+            try (DataOutputStream out = output(path)) {
+                for (Entry entry : run) {
+                    out.write(entry.hash);
+                    out.writeLong(entry.offset);
+                }
+            }
+            run.clear();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            if (!run.isEmpty()) {
+                spill();
+            }
+            PriorityQueue<HashReader> queue = new PriorityQueue<>(Comparator.comparing((HashReader reader) -> reader.head, Entry.BY_HASH));
+            try {
+                for (Path path : files) {
+                    HashReader reader = new HashReader(input(path));
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+                HashReader reader;
+                while ((reader = queue.poll()) != null) {
+                    out.write(reader.head.hash);
+                    out.writeLong(reader.head.offset);
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            } finally {
+                for (HashReader reader : queue) {
+                    reader.in.close();
+                }
+            }
+        }
+
+        void delete() throws IOException {
+            for (Path path : files) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private class HashReader {
+        private final DataInputStream in;
+        private Entry head;
+
+        HashReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        boolean advance() throws IOException {
+            byte[] hash = new byte[hashLength];
+            try {
+                in.readFully(hash);
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+            head = new Entry(null, hash, in.readLong());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads manifest written by {@link ManifestWriter}, line by line.
+ * <p>
+ * The file is memory mapped by windows, and the next window starts at the first line not
+ * completed by the previous one, so only a window of the file is mapped at a time. Hashes are
+ * decoded into one reused array. Empty lines are skipped, and a line may end with <tt>\r\n</tt>.
+ * The prefix of hashes, such as {@link FingerprintHasher#TEXT_PREFIX}, is taken from the first line.
+ */
+class ManifestReader implements ManifestSource {
+    private static final long MAP_WINDOW = 1 << 30;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+    private String prefix;
+    private byte[] hash;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private byte[] line = new byte[256];
+    private int pathStart;
+    private int pathEnd;
+
+    private ManifestReader(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+        map(0);
+        if (next()) {
+            // the first line is read again by the first call of next()
+            map(0);
+        }
+    }
+
+    /**
+     * Opens text manifest.
+     *
+     * @param file manifest file
+     * @return reader positioned before the first line
+     * @throws IOException if file can't be read or its first line is malformed
+     */
+    static ManifestReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new ManifestReader(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        int length;
+        do {
+            if (!window.hasRemaining()) {
+                if (windowStart + window.limit() >= size) {
+                    return false;
+                }
+                map(windowStart + window.limit());
+            }
+            length = readLine();
+        } while (length == 0);
+        parse(length);
+        return true;
+    }
+
+    /**
+     * Copies the next line without its terminator into {@link #line}, remapping if it is cut by the window end.
+     */
+    private int readLine() throws IOException {
+        int start = window.position();
+        int end = start;
+        int limit = window.limit();
+        while (end < limit && window.get(end) != '\n') {
+            end++;
+        }
+        if (end == limit && windowStart + limit < size) {
+            if (start == 0) {
+                throw new IOException("Line longer than " + MAP_WINDOW + " bytes in manifest " + file);
+            }
+            map(windowStart + start);
+            return readLine();
+        }
+        window.position(Math.min(end + 1, limit));
+        if (end > start && window.get(end - 1) == '\r') {
+            end--;
+        }
+        int length = end - start;
+        if (length > line.length) {
+            line = new byte[Math.max(length, 2 * line.length)];
+        }
+        for (int i = 0; i < length; i++) {
+            line[i] = window.get(start + i);
+        }
+        return length;
+    }
+
+    private void parse(int length) throws IOException {
+        int space = 0;
+        while (space < length && line[space] != ' ') {
+            space++;
+        }
+        int hex = space;
+        while (hex > 0 && line[hex - 1] != ':') {
+            hex--;
+        }
+        if (space == length || (space - hex) % 2 != 0) {
+            throw malformed(length);
+        }
+        if (prefix == null) {
+            prefix = new String(line, 0, hex, StandardCharsets.UTF_8);
+            hash = new byte[(space - hex) / 2];
+        } else if (hex != prefix.length() || (space - hex) / 2 != hash.length) {
+            throw new IOException("Hashes of different kinds in manifest " + file);
+        }
+        for (int i = 0; i < hash.length; i++) {
+            int high = Character.digit(line[hex + 2 * i], 16);
+            int low = Character.digit(line[hex + 2 * i + 1], 16);
+            if (high < 0 || low < 0) {
+                throw malformed(length);
+            }
+            hash[i] = (byte) (high << 4 | low);
+        }
+        pathStart = space + 1;
+        pathEnd = length;
+    }
+
+    private IOException malformed(int length) {
+        return new IOException("Malformed line in manifest " + file + ": "
+                + new String(line, 0, Math.min(length, 80), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public byte[] hash() {
+        return hash;
+    }
+
+    @Override
+    public String path() {
+        return new String(line, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns <tt>null</tt>, as text manifests don't record the algorithm.
+     */
+    @Override
+    public String algorithm() {
+        return null;
+    }
+
+    @Override
+    public boolean fingerprints() {
+        return FingerprintHasher.TEXT_PREFIX.equals(prefix);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
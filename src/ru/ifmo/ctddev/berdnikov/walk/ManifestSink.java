@@ -0,0 +1,28 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Receiver of walk results in walk order.
+ */
+interface ManifestSink extends Closeable {
+    /**
+     * Accepts hash of the next file.
+     *
+     * @param hash hash of file
+     * @param file path of file
+     * @throws IOException if output can't be written
+     */
+    void write(byte[] hash, Path file) throws IOException;
+
+    /**
+     * Accepts hash of a directory, written after the hashes of its contents.
+     *
+     * @param hash hash of directory
+     * @param dir path of directory
+     * @throws IOException if output can't be written
+     */
+    void writeDirectory(byte[] hash, Path dir) throws IOException;
+}
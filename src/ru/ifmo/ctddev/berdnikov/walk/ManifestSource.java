@@ -0,0 +1,70 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Manifest read record by record in the order it was written.
+ */
+interface ManifestSource extends Closeable {
+    /**
+     * Reads next record.
+     *
+     * @return <tt>false</tt> if there are no more records
+     * @throws IOException if manifest can't be read
+     */
+    boolean next() throws IOException;
+
+    /**
+     * Returns hash of the current record. The array may be reused by the next record.
+     *
+     * @return hash bytes
+     */
+    byte[] hash();
+
+    /**
+     * Returns path of the current record, paths of directories end with a separator.
+     *
+     * @return path as it was written by the walk
+     */
+    String path();
+
+    /**
+     * Returns name of the hash algorithm.
+     *
+     * @return algorithm name, <tt>null</tt> if the manifest doesn't record it
+     */
+    String algorithm();
+
+    /**
+     * Returns whether hashes are fingerprints of {@link FingerprintHasher}.
+     *
+     * @return <tt>true</tt> for fingerprints
+     */
+    boolean fingerprints();
+
+    /**
+     * Opens manifest of either format, memory mapped.
+     *
+     * @param file manifest written by {@link ManifestWriter} or {@link BinaryManifestWriter}
+     * @return source positioned before the first record
+     * @throws IOException if file can't be read or is malformed
+     */
+    static ManifestSource open(Path file) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (magic.hasRemaining() && channel.read(magic) != -1) {
+                // the first bytes tell the format
+            }
+        }
+        magic.flip();
+        if (magic.remaining() == 4 && magic.getInt() == BinaryManifestWriter.MAGIC) {
+            return BinaryManifestReader.open(file, true);
+        }
+        return ManifestReader.open(file);
+    }
+}
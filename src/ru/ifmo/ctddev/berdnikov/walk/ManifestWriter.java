@@ -0,0 +1,228 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes manifest lines <tt>hash path</tt> in UTF-8. Paths of directories end with a separator.
+ * <p>
+ * Hashes are hex-encoded and paths are encoded to UTF-8 by hand straight into one
+ * large buffer, which is written to the channel when full. So, apart from
+ * {@link Path#toString()}, no objects are created per line.
+ */
+class ManifestWriter implements ManifestSink {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final WritableByteChannel channel;
+    private final byte[] prefix;
+    private long size;
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int position;
+
+    /**
+     * Creates writer to given file. File is created or truncated.
+     *
+     * @param file manifest file
+     * @throws IOException if file can't be opened
+     */
+    ManifestWriter(Path file) throws IOException {
+        this(file, "");
+    }
+
+    /**
+     * Creates writer to given file which marks every hash by given prefix. File is created or truncated.
+     *
+     * @param file manifest file
+     * @param prefix prefix of hashes, such as {@link FingerprintHasher#TEXT_PREFIX}
+     * @throws IOException if file can't be opened
+     */
+    ManifestWriter(Path file, String prefix) throws IOException {
+        this(FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE), prefix);
+    }
+
+    ManifestWriter(WritableByteChannel channel) {
+        this(channel, "");
+    }
+
+    private ManifestWriter(WritableByteChannel channel, String prefix) {
+        this.channel = channel;
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates writer which continues given file from given length, dropping everything after it.
+     *
+     * @param file manifest file
+     * @param length length of the part to keep
+     * @param prefix prefix of hashes
+     * @return writer positioned at the end of the kept part
+     * @throws IOException if file can't be opened or is shorter than <tt>length</tt>
+     */
+    static ManifestWriter append(Path file, long length, String prefix) throws IOException {
+        FileChannel channel = FileChannel.open(file, WRITE);
+        try {
+            if (channel.size() < length) {
+                throw new IOException("Manifest " + file + " is shorter than " + length + " bytes");
+            }
+            channel.truncate(length);
+            channel.position(length);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        ManifestWriter writer = new ManifestWriter(channel, prefix);
+        writer.size = length;
+        return writer;
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        write(hash, file.toString());
+    }
+
+    /**
+     * Writes line of a directory, its path ends with a separator.
+     */
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        write(hash, dir.toString() + File.separator);
+    }
+
+    /**
+     * Writes manifest line with path given as a string.
+     *
+     * @param hash hash of file
+     * @param file path of file
+     * @throws IOException if output can't be written
+     */
+    void write(byte[] hash, String file) throws IOException {
+        ensure(prefix.length + 2 * hash.length + 1);
+        writeLine(hash, file);
+    }
+
+    /**
+     * Writes manifest line marked by given status character, as in <tt>M hash path</tt>.
+     *
+     * @param status status of file, an ASCII character
+     * @param hash hash of file
+     * @param file path of file
+     * @throws IOException if output can't be written
+     */
+    void write(char status, byte[] hash, String file) throws IOException {
+        ensure(2 + prefix.length + 2 * hash.length + 1);
+        bytes[position++] = (byte) status;
+        bytes[position++] = ' ';
+        writeLine(hash, file);
+    }
+
+    private void writeLine(byte[] hash, String file) throws IOException {
+        for (byte b : prefix) {
+            bytes[position++] = b;
+        }
+        for (byte b : hash) {
+            bytes[position++] = HEX[(b >> 4) & 0xf];
+            bytes[position++] = HEX[b & 0xf];
+        }
+        bytes[position++] = ' ';
+        writeUtf8(file);
+        newLine();
+    }
+
+    /**
+     * Writes an empty line.
+     *
+     * @throws IOException if output can't be written
+     */
+    void newLine() throws IOException {
+        ensure(LINE_SEPARATOR.length);
+        for (byte b : LINE_SEPARATOR) {
+            bytes[position++] = b;
+        }
+    }
+
+    private void writeUtf8(String s) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            ensure(4);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                bytes[position++] = (byte) (0xf0 | (cp >> 18));
+                bytes[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                // unpaired surrogate, replaced as String.getBytes does
+                bytes[position++] = '?';
+            }
+        }
+    }
+
+    private void ensure(int length) throws IOException {
+        if (position + length > bytes.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes buffered lines to the channel.
+     *
+     * @throws IOException if output can't be written
+     */
+    void flush() throws IOException {
+        buffer.clear().limit(position);
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        position = 0;
+    }
+
+    /**
+     * Writes buffered lines and forces them to the storage device if the channel is a file.
+     *
+     * @throws IOException if output can't be written
+     */
+    void commit() throws IOException {
+        flush();
+        if (channel instanceof FileChannel) {
+            ((FileChannel) channel).force(false);
+        }
+    }
+
+    /**
+     * Returns number of bytes written to the channel, including the part kept by {@link #append}.
+     *
+     * @return size of written manifest
+     */
+    long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * {@link ManifestSink} which adds hashes of directories to the file hashes passing through it.
+ * <p>
+ * Hash of a directory is counted by the same algorithm as file hashes over its entries sorted
+ * by name: for every entry a type byte (<tt>f</tt> or <tt>d</tt>), UTF-8 name, a zero byte and
+ * the entry's hash. So it doesn't depend on the order of directory streams, and two trees
+ * with equal hashes of a directory have equal subtrees there. The lines only add these digests
+ * to the manifest: the walk still hashes every file, and {@link ManifestDiff} compares them as
+ * any other lines. A directory line is written after the lines of its contents.
+ * <p>
+ * Directories are known from the paths of files, which come in walk order, so a directory is
+ * complete once a path outside it arrives or its root ends. Directories without files anywhere
+ * below them have no lines and are not part of the hashes. If the walk of a root is aborted,
+ * directories still open are dropped without lines.
+ */
+class MerkleSink implements ManifestSink {
+    private static final byte[] FILE = {'f'};
+    private static final byte[] DIRECTORY = {'d'};
+    private static final byte[] SEPARATOR = {0};
+
+    private final ManifestSink sink;
+    private final HashProvider.Hasher hasher;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private Path root;
+
+    /**
+     * Creates sink.
+     *
+     * @param sink sink for file and directory lines
+     * @param provider algorithm of directory hashes, the same as of file hashes
+     */
+    MerkleSink(ManifestSink sink, HashProvider provider) {
+        this.sink = sink;
+        this.hasher = provider.newHasher();
+    }
+
+    /**
+     * Starts a new root of the walk.
+     *
+     * @param root root whose files are written next
+     */
+    void beginRoot(Path root) {
+        this.root = root;
+        frames.clear();
+    }
+
+    /**
+     * Writes lines of all directories of the current root which are still open.
+     *
+     * @throws IOException if output can't be written
+     */
+    void endRoot() throws IOException {
+        while (!frames.isEmpty()) {
+            closeFrame();
+        }
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        if (file.equals(root) || !file.startsWith(root)) {
+            // a file root, or the line of an aborted root
+            frames.clear();
+            sink.write(hash, file);
+            return;
+        }
+        Path dir = file.getParent();
+        while (!frames.isEmpty() && !dir.startsWith(frames.peek().dir)) {
+            closeFrame();
+        }
+        Path current = frames.isEmpty() ? null : frames.peek().dir;
+        if (current == null) {
+            current = root;
+            frames.push(new Frame(current));
+        }
+        for (Path name : current.relativize(dir)) {
+            if (!name.toString().isEmpty()) {
+                current = current.resolve(name);
+                frames.push(new Frame(current));
+            }
+        }
+        sink.write(hash, file);
+        frames.peek().entries.add(new Entry(file.getFileName().toString(), false, hash));
+    }
+
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        sink.writeDirectory(hash, dir);
+    }
+
+    private void closeFrame() throws IOException {
+        Frame frame = frames.pop();
+        frame.entries.sort((a, b) -> a.name.compareTo(b.name));
+        for (Entry entry : frame.entries) {
+            update(entry.directory ? DIRECTORY : FILE);
+            update(entry.name.getBytes(StandardCharsets.UTF_8));
+            update(SEPARATOR);
+            update(entry.hash);
+        }
+        byte[] hash = hasher.digest();
+        sink.writeDirectory(hash, frame.dir);
+        if (!frames.isEmpty()) {
+            frames.peek().entries.add(new Entry(frame.dir.getFileName().toString(), true, hash));
+        }
+    }
+
+    private void update(byte[] bytes) {
+        hasher.update(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            endRoot();
+        } finally {
+            sink.close();
+        }
+    }
+
+    private static class Frame {
+        private final Path dir;
+        private final List<Entry> entries = new ArrayList<>();
+
+        Frame(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    private static class Entry {
+        private final String name;
+        private final boolean directory;
+        private final byte[] hash;
+
+        Entry(String name, boolean directory, byte[] hash) {
+            this.name = name;
+            this.directory = directory;
+            this.hash = hash;
+        }
+    }
+}
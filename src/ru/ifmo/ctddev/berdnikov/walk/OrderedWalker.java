@@ -0,0 +1,212 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+
+/**
+ * Walk which starts hashing of files asynchronously and writes results in walk order.
+ * <p>
+ * The tree is traversed by {@link Files#walkFileTree(Path, FileVisitor)} in the calling
+ * thread. For every file {@link #start(Path, BasicFileAttributes)} returns a future hash,
+ * and finished hashes at the head of the queue are written as soon as possible. The
+ * number of started but not yet written files is limited, so the walk waits for the
+ * oldest file when too far ahead. A failed hash is written as zeros, as by
+ * {@link RecursiveWalk.Walker#countHash(Path, BasicFileAttributes, FileHasher)}.
+ */
+abstract class OrderedWalker {
+    private final ManifestSink writer;
+    private final int hashLength;
+    private final int maxPending;
+    /**
+     * Metrics of the walk, <tt>null</tt> if not collected.
+     */
+    final WalkMetrics metrics;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private PathFilter filter;
+    private long files;
+    private long bytes;
+
+    /**
+     * Creates walker.
+     *
+     * @param writer output
+     * @param hashLength length of hashes in bytes
+     * @param maxPending maximal number of started but not written files
+     * @param metrics metrics of the walk, <tt>null</tt> if not collected
+     */
+    OrderedWalker(ManifestSink writer, int hashLength, int maxPending, WalkMetrics metrics) {
+        this.writer = writer;
+        this.hashLength = hashLength;
+        this.maxPending = maxPending;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts hashing of given file. May wait until resources are free.
+     *
+     * @param file file to hash
+     * @param attrs attributes of file read during the walk
+     * @return future hash of file contents
+     * @throws IOException if hashing can't be started at all
+     */
+    protected abstract Future<byte[]> start(Path file, BasicFileAttributes attrs) throws IOException;
+
+    /**
+     * Walks the tree rooted at given path and writes hashes of all its files.
+     *
+     * @param root root of the tree
+     * @throws IOException if output can't be written
+     */
+    void walk(Path root) throws IOException {
+        walk(root, null);
+    }
+
+    /**
+     * Sets filter of entries of the following walks.
+     *
+     * @param filter filter, <tt>null</tt> to walk everything
+     */
+    void filter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Walks the tree rooted at given path and writes hashes of its files not written before given point.
+     *
+     * @param root root of the tree
+     * @param resume point to resume the walk from, <tt>null</tt> to walk the whole tree
+     * @throws IOException if output can't be written
+     */
+    void walk(Path root, ResumePoint resume) throws IOException {
+        boolean visited = true;
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (resume != null && resume.written(dir) || filter != null && filter.skipDirectory(root, dir)) {
+                        return SKIP_SUBTREE;
+                    }
+                    if (metrics != null) {
+                        metrics.directory();
+                    }
+                    return CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (resume != null && resume.written(file) || filter != null && filter.skipFile(root, file)) {
+                        return CONTINUE;
+                    }
+                    long start = System.nanoTime();
+                    submit(file, attrs);
+                    if (metrics != null) {
+                        metrics.visit(System.nanoTime() - start);
+                    }
+                    return CONTINUE;
+                }
+            });
+        } catch (StopException e) {
+            throw e.getCause();
+        } catch (IOException e) {
+            visited = false;
+        }
+        while (!pending.isEmpty()) {
+            writeFirst();
+        }
+        if (!visited) {
+            writer.write(new byte[hashLength], root);
+        }
+    }
+
+    private void submit(Path file, BasicFileAttributes attrs) throws StopException {
+        try {
+            while (pending.size() >= maxPending) {
+                writeFirst();
+            }
+            pending.add(new Pending(file, start(file, attrs)));
+            files++;
+            bytes += attrs.size();
+            while (!pending.isEmpty() && pending.peek().hash.isDone()) {
+                writeFirst();
+            }
+        } catch (IOException e) {
+            throw new StopException(e);
+        }
+    }
+
+    private void writeFirst() throws IOException {
+        Pending first = pending.poll();
+        byte[] hash;
+        try {
+            hash = first.hash.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for file hash");
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof IOException)) {
+                throw new IOException(e.getCause());
+            }
+            hash = new byte[hashLength];
+        }
+        writer.write(hash, first.file);
+    }
+
+    /**
+     * Returns number of files started to hash.
+     *
+     * @return number of files
+     */
+    long files() {
+        return files;
+    }
+
+    /**
+     * Returns total size of files started to hash.
+     *
+     * @return number of bytes
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Releases resources of the walker. Hashes already started are completed.
+     */
+    abstract void shutdown();
+
+    private static class Pending {
+        private final Path file;
+        private final Future<byte[]> hash;
+
+        Pending(Path file, Future<byte[]> hash) {
+            this.file = file;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Carries errors of output or of hashing machinery through the visitor,
+     * so they are not taken for errors of visiting the tree.
+     */
+    private static class StopException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StopException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
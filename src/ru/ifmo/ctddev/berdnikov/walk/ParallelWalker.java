@@ -0,0 +1,311 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel counterpart of {@link RecursiveWalk.Walker}.
+ * <p>
+ * Every directory is listed by its own {@link DirectoryTask} and every file is hashed
+ * by its own {@link FileTask}, both run in a {@link ForkJoinPool}. Tasks are started in the
+ * order {@link Files#walkFileTree(Path, FileVisitor)} would visit their entries, by a {@link Walk}
+ * which keeps at most {@link #PENDING_PER_THREAD} tasks per thread started but not written, so
+ * the pool never runs further ahead of the writer and memory doesn't depend on the size of
+ * the tree. The calling thread joins the tasks in the same order and writes lines as soon
+ * as they are ready, so the output is identical to the sequential walk, including
+ * the <tt>00000000 root</tt> line written when some entry of the root can't be visited.
+ */
+class ParallelWalker {
+    /**
+     * Number of tasks per thread which may be started but not written.
+     */
+    static final int PENDING_PER_THREAD = 64;
+    /**
+     * Marks the end of entries of a directory whose listing failed.
+     */
+    private static final ForkJoinTask<?> FAILED = ForkJoinTask.adapt(() -> {});
+
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final ManifestSink writer;
+    private final FileHasher hasher;
+    private final WalkMetrics metrics;
+    private PathFilter filter;
+
+    ParallelWalker(int threads, ManifestSink writer, FileHasher hasher, WalkMetrics metrics) {
+        // FIFO local queues: files are hashed in roughly the order they are written
+        this.pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        this.maxPending = PENDING_PER_THREAD * threads;
+        this.writer = writer;
+        this.hasher = hasher;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Walks the tree rooted at given path and writes hashes of all its files.
+     *
+     * @param root root of the tree
+     * @throws IOException if output can't be written
+     */
+    void walk(Path root) throws IOException {
+        walk(root, null);
+    }
+
+    /**
+     * Sets filter of entries of the following walks.
+     *
+     * @param filter filter, <tt>null</tt> to walk everything
+     */
+    void filter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Walks the tree rooted at given path and writes hashes of its files not written before given point.
+     *
+     * @param root root of the tree
+     * @param resume point to resume the walk from, <tt>null</tt> to walk the whole tree
+     * @throws IOException if output can't be written
+     */
+    void walk(Path root, ResumePoint resume) throws IOException {
+        write(root, start(root, resume));
+    }
+
+    /**
+     * Starts the walk of the tree rooted at given path without writing anything, so walks of
+     * several roots may run at once. Each of them runs until its window of tasks not yet written
+     * by {@link #write(Path, Walk)} is full.
+     *
+     * @param root root of the tree
+     * @param resume point to resume the walk from, <tt>null</tt> to walk the whole tree
+     * @return started walk, <tt>null</tt> if root can't be visited
+     */
+    Walk start(Path root, ResumePoint resume) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            Walk walk = new Walk();
+            synchronized (walk) {
+                walk.add(attrs.isDirectory() ? new DirectoryTask(root, root, resume, walk) : new FileTask(root, attrs));
+            }
+            return walk;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes hashes of the tree of the walk started by {@link #start(Path, ResumePoint)} as they are ready.
+     *
+     * @param root root of the tree
+     * @param walk started walk, <tt>null</tt> if root can't be visited
+     * @throws IOException if output can't be written
+     */
+    void write(Path root, Walk walk) throws IOException {
+        boolean visited = false;
+        try {
+            visited = walk != null && write(walk);
+        } finally {
+            if (walk != null && !visited) {
+                walk.cancel();
+            }
+        }
+        if (!visited) {
+            writer.write(new byte[hasher.length()], root);
+        }
+    }
+
+    /**
+     * Stops worker threads. Tasks already submitted are completed.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Writes results of the walk in walk order.
+     *
+     * @return <tt>false</tt> if the walk of the current root must be aborted
+     */
+    private boolean write(Walk walk) throws IOException {
+        while (true) {
+            ForkJoinTask<?> task;
+            DirectoryTask blocked = null;
+            synchronized (walk) {
+                walk.fill();
+                task = walk.ahead.poll();
+                if (task == null) {
+                    if (walk.levels.isEmpty()) {
+                        return true;
+                    }
+                    blocked = walk.levels.peek().task;
+                }
+            }
+            if (blocked != null) {
+                // nothing to write until this directory is listed
+                blocked.join();
+            } else if (task == FAILED) {
+                return false;
+            } else if (task instanceof FileTask) {
+                FileTask file = (FileTask) task;
+                writer.write(file.join(), file.file);
+                walk.written();
+            } else {
+                walk.written();
+            }
+        }
+    }
+
+    /**
+     * Walk of one root: tasks started in walk order and not yet written, and the position
+     * of the next entry to start. The position is a stack of listed directories, each with
+     * the index of its next entry; a directory on top of the stack whose listing isn't ready
+     * stops starting until its task calls {@link #fill()}. Guarded by its own monitor.
+     */
+    class Walk {
+        private final Deque<ForkJoinTask<?>> ahead = new ArrayDeque<>();
+        private final Deque<Level> levels = new ArrayDeque<>();
+        private int pending;
+        private boolean cancelled;
+
+        private void add(ForkJoinTask<?> task) {
+            ahead.add(task);
+            pending++;
+            if (task instanceof DirectoryTask) {
+                levels.push(new Level((DirectoryTask) task));
+            }
+            pool.execute(task);
+        }
+
+        /**
+         * Starts tasks of the next entries while the window has room.
+         */
+        private synchronized void fill() {
+            while (!cancelled && pending < maxPending && !levels.isEmpty()) {
+                Level level = levels.peek();
+                Listing listing = level.task.listing;
+                if (listing == null) {
+                    return;
+                }
+                if (level.next < listing.children.size()) {
+                    ForkJoinTask<?> child = listing.children.get(level.next);
+                    // started tasks are referenced by the window only
+                    listing.children.set(level.next++, null);
+                    add(child);
+                } else {
+                    levels.pop();
+                    if (listing.failed) {
+                        ahead.add(FAILED);
+                    }
+                }
+            }
+        }
+
+        private synchronized void written() {
+            pending--;
+            fill();
+        }
+
+        /**
+         * Cancels tasks not yet started by the pool and stops starting new ones.
+         */
+        private synchronized void cancel() {
+            cancelled = true;
+            for (ForkJoinTask<?> task : ahead) {
+                task.cancel(false);
+            }
+            ahead.clear();
+            levels.clear();
+        }
+    }
+
+    /**
+     * Listed directory of the walk with the index of its next entry to start.
+     */
+    private static class Level {
+        private final DirectoryTask task;
+        private int next;
+
+        Level(DirectoryTask task) {
+            this.task = task;
+        }
+    }
+
+    private class FileTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+        private final BasicFileAttributes attrs;
+
+        FileTask(Path file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected byte[] compute() {
+            return RecursiveWalk.Walker.countHash(file, attrs, hasher);
+        }
+    }
+
+    /**
+     * Entries of a directory in directory stream order, not yet started. If listing stopped on
+     * an error, <tt>failed</tt> is set and <tt>children</tt> holds entries seen before it.
+     */
+    private static class Listing {
+        private final List<ForkJoinTask<?>> children = new ArrayList<>();
+        private boolean failed;
+    }
+
+    private class DirectoryTask extends RecursiveTask<Listing> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Path root;
+        private final ResumePoint resume;
+        private final Walk walk;
+        /**
+         * Listing, set once it is complete.
+         */
+        private volatile Listing listing;
+
+        DirectoryTask(Path dir, Path root, ResumePoint resume, Walk walk) {
+            this.dir = dir;
+            this.root = root;
+            this.resume = resume;
+            this.walk = walk;
+        }
+
+        @Override
+        protected Listing compute() {
+            Listing listing = new Listing();
+            if (metrics != null) {
+                metrics.directory();
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    if (resume != null && resume.written(entry)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (filter != null && (attrs.isDirectory() ? filter.skipDirectory(root, entry) : filter.skipFile(root, entry))) {
+                        continue;
+                    }
+                    listing.children.add(attrs.isDirectory() ? new DirectoryTask(entry, root, resume, walk) : new FileTask(entry, attrs));
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                listing.failed = true;
+            }
+            this.listing = listing;
+            walk.fill();
+            return listing;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Include and exclude rules for entries under a root, compiled once for the whole walk.
+ * <p>
+ * A rule is <tt>glob:&lt;pattern&gt;</tt>, <tt>regex:&lt;pattern&gt;</tt> or a bare glob. A glob
+ * without <tt>/</tt> matches the name of an entry at any depth, like <tt>node_modules</tt> or
+ * <tt>*.o</tt>; a glob with <tt>/</tt> and every regex match the whole path relative to the root,
+ * with <tt>/</tt> as separator. In globs <tt>*</tt> and <tt>?</tt> don't cross <tt>/</tt>,
+ * <tt>**</tt> does, <tt>[...]</tt> and <tt>{a,b}</tt> work as in {@link java.nio.file.FileSystem#getPathMatcher(String)}.
+ * <p>
+ * A directory matching an exclude rule is pruned with its subtree; a file is written if it matches
+ * no exclude rule and, when there are include rules, matches one of them. Include rules don't apply
+ * to directories, as an included file may lie anywhere below. Roots themselves are never filtered.
+ * <p>
+ * Plain names and <tt>*.ext</tt> rules, which are most of them in practice, are looked up in hash
+ * sets by the name or its extension; the other rules of each kind are joined into one regex, so
+ * a check costs at most two set lookups and two regex matches whatever the number of rules.
+ */
+class PathFilter {
+    private final Rules includes;
+    private final Rules excludes;
+
+    /**
+     * Compiles rules.
+     *
+     * @param includes include rules, empty to include all files
+     * @param excludes exclude rules
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    PathFilter(List<String> includes, List<String> excludes) {
+        this.includes = includes.isEmpty() ? null : new Rules(includes);
+        this.excludes = new Rules(excludes);
+    }
+
+    /**
+     * Returns whether directory with its subtree must be skipped.
+     *
+     * @param root root of the walk
+     * @param dir directory under <tt>root</tt>
+     * @return <tt>true</tt> if directory is excluded
+     */
+    boolean skipDirectory(Path root, Path dir) {
+        return !dir.equals(root) && excludes.matches(root, dir);
+    }
+
+    /**
+     * Returns whether file must be skipped.
+     *
+     * @param root root of the walk
+     * @param file file under <tt>root</tt>
+     * @return <tt>true</tt> if file is excluded or not included
+     */
+    boolean skipFile(Path root, Path file) {
+        if (file.equals(root)) {
+            return false;
+        }
+        return excludes.matches(root, file) || includes != null && !includes.matches(root, file);
+    }
+
+    /**
+     * Rules of one kind, any of which may match.
+     */
+    private static class Rules {
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> extensions = new HashSet<>();
+        private final Pattern namePattern;
+        private final Pattern pathPattern;
+
+        Rules(List<String> rules) {
+            List<String> nameRegexes = new ArrayList<>();
+            List<String> pathRegexes = new ArrayList<>();
+            for (String rule : rules) {
+                if (rule.startsWith("regex:")) {
+                    pathRegexes.add(check(rule, rule.substring("regex:".length())));
+                    continue;
+                }
+                String glob = rule.startsWith("glob:") ? rule.substring("glob:".length()) : rule;
+                if (glob.isEmpty()) {
+                    throw new IllegalArgumentException("empty rule " + rule);
+                }
+                if (glob.indexOf('/') >= 0) {
+                    pathRegexes.add(check(rule, globToRegex(glob.startsWith("/") ? glob.substring(1) : glob)));
+                } else if (isLiteral(glob)) {
+                    names.add(glob);
+                } else if (glob.startsWith("*.") && isLiteral(glob.substring(2)) && glob.indexOf('.', 2) < 0) {
+                    extensions.add(glob.substring(2));
+                } else {
+                    nameRegexes.add(check(rule, globToRegex(glob)));
+                }
+            }
+            namePattern = join(nameRegexes);
+            pathPattern = join(pathRegexes);
+        }
+
+        boolean matches(Path root, Path path) {
+            Path fileName = path.getFileName();
+            if (fileName != null && (!names.isEmpty() || !extensions.isEmpty() || namePattern != null)) {
+                String name = fileName.toString();
+                if (names.contains(name)) {
+                    return true;
+                }
+                int dot = name.lastIndexOf('.');
+                if (dot >= 0 && extensions.contains(name.substring(dot + 1))) {
+                    return true;
+                }
+                if (namePattern != null && namePattern.matcher(name).matches()) {
+                    return true;
+                }
+            }
+            return pathPattern != null && pathPattern.matcher(relative(root, path)).matches();
+        }
+
+        private static String check(String rule, String regex) {
+            try {
+                Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("malformed rule " + rule + ": " + e.getDescription());
+            }
+            return regex;
+        }
+
+        private static Pattern join(List<String> regexes) {
+            if (regexes.isEmpty()) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String regex : regexes) {
+                sb.append(sb.length() == 0 ? "" : "|").append("(?:").append(regex).append(')');
+            }
+            return Pattern.compile(sb.toString());
+        }
+    }
+
+    /**
+     * Returns path relative to root with <tt>/</tt> as separator. Entries of a walk are resolved
+     * against its root, so the root is a prefix of their string form.
+     */
+    private static String relative(Path root, Path path) {
+        String s = path.toString();
+        String prefix = root.toString();
+        int start = prefix.length();
+        if (s.startsWith(prefix)) {
+            if (start < s.length() && s.charAt(start) == File.separatorChar) {
+                start++;
+            }
+            s = s.substring(start);
+        } else {
+            s = root.relativize(path).toString();
+        }
+        return File.separatorChar == '/' ? s : s.replace(File.separatorChar, '/');
+    }
+
+    private static boolean isLiteral(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[]{}\\".indexOf(glob.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Translates glob to regex.
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int groups = 0;
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                } else if (c == '\\' || c == '[' || c == '&') {
+                    regex.append('\\');
+                }
+                regex.append(c);
+                continue;
+            }
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            // **/ matches any number of whole directories, including none
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    inClass = true;
+                    regex.append('[');
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        i++;
+                        regex.append('^');
+                    }
+                    break;
+                case '{':
+                    groups++;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (groups == 0) {
+                        throw new IllegalArgumentException("unmatched } in " + glob);
+                    }
+                    groups--;
+                    regex.append(')');
+                    break;
+                case ',':
+                    regex.append(groups > 0 ? "|" : ",");
+                    break;
+                case '\\':
+                    if (++i == glob.length()) {
+                        throw new IllegalArgumentException("trailing \\ in " + glob);
+                    }
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    break;
+                default:
+                    if ("().+^$|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        if (inClass || groups > 0) {
+            throw new IllegalArgumentException("unclosed [ or { in " + glob);
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link ManifestSink} which hands results over to a dedicated writer thread.
+ * <p>
+ * Results are packed into batches of {@link #BATCH_SIZE} records which go through
+ * a bounded queue and come back empty through a queue of free batches, so nothing
+ * is allocated in steady state. There is a single producer and a single consumer,
+ * so order is kept. When output is slower than hashing, the queue fills up and
+ * {@link #write(byte[], Path)} waits for the writer thread, which holds the walk
+ * back by at most a queue of batches.
+ * <p>
+ * A failure of the underlying sink, of any kind, stops writing but not the writer thread,
+ * and is thrown to the producer by its next submitted batch or by {@link #close()}.
+ */
+class PipelinedWriter implements ManifestSink {
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * Tells writer thread to stop.
+     */
+    private static final Batch END = new Batch();
+
+    private final ManifestSink sink;
+    private final BlockingQueue<Batch> full;
+    private final BlockingQueue<Batch> free;
+    private final Thread thread;
+    private Batch current;
+    private volatile IOException error;
+
+    /**
+     * Starts writer thread.
+     *
+     * @param sink sink used by writer thread
+     * @param capacity maximal number of batches waiting to be written
+     */
+    PipelinedWriter(ManifestSink sink, int capacity) {
+        this.sink = sink;
+        this.full = new ArrayBlockingQueue<>(capacity + 1);
+        this.free = new ArrayBlockingQueue<>(capacity + 2);
+        for (int i = 0; i < capacity + 1; i++) {
+            free.add(new Batch());
+        }
+        this.current = new Batch();
+        this.thread = new Thread(this::drain, "manifest-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void write(byte[] hash, Path file) throws IOException {
+        add(hash, file, false);
+    }
+
+    @Override
+    public void writeDirectory(byte[] hash, Path dir) throws IOException {
+        add(hash, dir, true);
+    }
+
+    private void add(byte[] hash, Path path, boolean directory) throws IOException {
+        Batch batch = current;
+        batch.hashes[batch.size] = hash;
+        batch.paths[batch.size] = path;
+        batch.directories[batch.size] = directory;
+        if (++batch.size == BATCH_SIZE) {
+            submit();
+        }
+    }
+
+    private void submit() throws IOException {
+        checkError();
+        try {
+            full.put(current);
+            current = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for manifest writer");
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Batch batch = full.take();
+                if (batch == END) {
+                    return;
+                }
+                if (error == null) {
+                    try {
+                        for (int i = 0; i < batch.size; i++) {
+                            if (batch.directories[i]) {
+                                sink.writeDirectory(batch.hashes[i], batch.paths[i]);
+                            } else {
+                                sink.write(batch.hashes[i], batch.paths[i]);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // reported to the producer, batches are still taken so it doesn't hang
+                        error = e;
+                    } catch (Throwable e) {
+                        // anything else would kill this thread and leave the producer waiting for free batches
+                        error = new IOException("Manifest writer failed: " + e, e);
+                    }
+                }
+                batch.clear();
+                free.put(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes remaining results, stops writer thread and closes the underlying sink.
+     *
+     * @throws IOException if some results couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (current.size > 0) {
+                full.put(current);
+            }
+            full.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for manifest writer");
+        } finally {
+            sink.close();
+        }
+        checkError();
+    }
+
+    private static class Batch {
+        private final byte[][] hashes = new byte[BATCH_SIZE][];
+        private final Path[] paths = new Path[BATCH_SIZE];
+        private final boolean[] directories = new boolean[BATCH_SIZE];
+        private int size;
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                hashes[i] = null;
+                paths[i] = null;
+            }
+            size = 0;
+        }
+    }
+}
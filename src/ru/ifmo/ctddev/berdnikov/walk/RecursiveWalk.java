@@ -4,97 +4,459 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
 
 public class RecursiveWalk {
     private final static Charset charsetUTF8 = Charset.forName("UTF-8");
+    private static final int ASYNC_CHUNK_SIZE = 1 << 18;
     private static Walker walker;
 
     static class Walker extends SimpleFileVisitor<Path> {
-        private final Writer writer;
+        private final ManifestSink writer;
+        private final FileHasher hasher;
+        private final WalkMetrics metrics;
+        private ResumePoint resume;
+        private PathFilter filter;
+        private Path root;
 
-        Walker(Writer writer) {
+        Walker(ManifestSink writer, FileHasher hasher, WalkMetrics metrics) {
             this.writer = writer;
+            this.hasher = hasher;
+            this.metrics = metrics;
         }
 
-        private static final int X0 = 0x811c9dc5;
-        private static final int FNV_32_PRIME = 0x01000193;
-
-        private int countHash(Path file) {
-            try (BufferedInputStream fileReader = new BufferedInputStream(new FileInputStream(file.toString()))) {
-                int h = X0;
-                int ch;
-                while ((ch = fileReader.read()) != -1) {
-                    h = (h * FNV_32_PRIME) ^ (ch & 0xff);
-                }
-                return h;
+        static byte[] countHash(Path file, BasicFileAttributes attrs, FileHasher hasher) {
+            try {
+                return hasher.hash(file, attrs);
             } catch (IOException e) {
-                return 0;
+                return new byte[hasher.length()];
             }
         }
 
+        /**
+         * Sets point to resume the next walk from, <tt>null</tt> to walk from the start.
+         */
+        void resume(ResumePoint resume) {
+            this.resume = resume;
+        }
+
+        /**
+         * Sets filter of entries and the root of the next walk, <tt>null</tt> filter to walk everything.
+         */
+        void filter(PathFilter filter, Path root) {
+            this.filter = filter;
+            this.root = root;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (resume != null && resume.written(dir) || filter != null && filter.skipDirectory(root, dir)) {
+                return SKIP_SUBTREE;
+            }
+            if (metrics != null) {
+                metrics.directory();
+            }
+            return CONTINUE;
+        }
+
         @Override
         public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            writer.write(String.format("%08x %s%n", countHash(file), file.toString()));
+            if (resume != null && resume.written(file) || filter != null && filter.skipFile(root, file)) {
+                return CONTINUE;
+            }
+            long start = System.nanoTime();
+            writer.write(countHash(file, attrs, hasher), file);
+            if (metrics != null) {
+                metrics.visit(System.nanoTime() - start);
+            }
             return CONTINUE;
         }
     }
 
     private static void printUsage() {
-        System.err.println("Usage: java RecursiveWalk <input file> <output file>");
+        System.err.println("Usage: java RecursiveWalk [--parallel <threads>] [--cache <file>] [--watch <latency ms>] [--hash <algorithm>]\n" +
+                "       [--pipeline <batches>] [--hard-links] [--duplicates]\n" +
+                "       [--virtual <max open files> (Java 21+)] [--thread-per-file <max open files>]\n" +
+                "       [--async <reads in flight>] [--progress <seconds>] [--metrics <json file>]\n" +
+                "       [--format text|binary] [--merkle] [--fingerprint]\n" +
+                "       [--checkpoint <file> [--checkpoint-interval <seconds>] [--resume]]\n" +
+                "       [--inode-order] [--per-device <threads> [--device-threads <path>=<threads>]...]\n" +
+                "       [--limit-bytes <bytes/s>] [--limit-opens <files/s>] [--limit-file <control file>]\n" +
+                "       [--include <rule>]... [--exclude <rule>]... [--archives]\n" +
+                "       [--diff <previous manifest>] [--index <index file>] <input file> <output file>\n" +
+                "   or: java RecursiveWalk --to-text <binary manifest> <output file>\n" +
+                "   or: java RecursiveWalk --diff <previous manifest> --input-manifest <manifest> <output file>\n" +
+                "   or: java RecursiveWalk --lookup <index file> <file of paths> <output file>");
     }
 
-    private static void walk(Path path, Writer writer) throws IOException {
+    private static void walk(Path path, ManifestSink writer) throws IOException {
         try {
             Files.walkFileTree(path, walker);
         } catch (IOException e) {
-            writer.write(String.format("%08x %s%n", 0, path.toString()));
+            writer.write(new byte[walker.hasher.length()], path);
         }
     }
 
-    private static boolean checkArgs(String[] args) {
+    private static WalkOptions checkArgs(String[] args) {
         if (args == null) {
             System.err.format("%s%n", "Error: No args");
             printUsage();
-            return false;
+            return null;
         }
 
-        if (args.length != 2) {
+        try {
+            return WalkOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.format("Error: %s%n", e.getMessage());
             printUsage();
-            return false;
+            return null;
         }
+    }
 
-        if (args[0] == null || args[1] == null) {
-            System.err.format("%s%n", "Error: null in args");
-            printUsage();
-            return false;
+    private static HashCache loadCache(WalkOptions options, HashEngine engine) throws IOException {
+        return options.cache == null ? null : HashCache.load(Paths.get(options.cache), engine);
+    }
+
+    private static String algorithm(WalkOptions options) {
+        return options.fingerprint ? FingerprintHasher.algorithm(options.hash) : options.hash.name();
+    }
+
+    private static CheckpointSink openCheckpoints(Path outputPath, WalkOptions options, Checkpoint resume) throws IOException {
+        if (options.checkpoint == null) {
+            return null;
+        }
+        String prefix = options.fingerprint ? FingerprintHasher.TEXT_PREFIX : "";
+        ManifestWriter writer = resume != null
+                ? ManifestWriter.append(outputPath, resume.bytes, prefix)
+                : new ManifestWriter(outputPath, prefix);
+        return new CheckpointSink(writer, Paths.get(options.checkpoint), options.input, algorithm(options), options.checkpointInterval);
+    }
+
+    private static ManifestDiff openDiff(Path outputPath, WalkOptions options) throws IOException {
+        if (options.diff == null) {
+            return null;
+        }
+        return openDiff(Paths.get(options.diff), outputPath, algorithm(options), options.fingerprint);
+    }
+
+    /**
+     * Opens diff with given previous manifest, checking its hashes before the output is truncated.
+     */
+    private static ManifestDiff openDiff(Path previousPath, Path outputPath, String algorithm, boolean fingerprints) throws IOException {
+        ManifestSource previous = ManifestSource.open(previousPath);
+        try {
+            ManifestDiff.check(previous, algorithm, fingerprints);
+            return new ManifestDiff(previous, new ManifestWriter(outputPath, fingerprints ? FingerprintHasher.TEXT_PREFIX : ""));
+        } catch (IOException e) {
+            previous.close();
+            throw e;
+        }
+    }
+
+    private static ManifestSink openOutput(Path outputPath, WalkOptions options, ArchiveHasher archives, WalkMetrics metrics,
+                                           CheckpointSink checkpoints, ManifestDiff diff) throws IOException {
+        ManifestSink writer;
+        if (checkpoints != null) {
+            writer = checkpoints;
+        } else if (diff != null) {
+            writer = diff;
+        } else if (options.binary) {
+            writer = new BinaryManifestWriter(outputPath, algorithm(options), options.hash.length());
+        } else {
+            writer = new ManifestWriter(outputPath, options.fingerprint ? FingerprintHasher.TEXT_PREFIX : "");
+        }
+        if (options.index != null) {
+            writer = new ManifestIndexWriter(writer, Paths.get(options.index), options.hash.length());
+        }
+        if (archives != null) {
+            writer = new ArchiveSink(writer, archives);
+        }
+        if (options.pipeline > 0) {
+            writer = new PipelinedWriter(writer, options.pipeline);
+        }
+        return metrics != null ? metrics.meter(writer) : writer;
+    }
+
+    private static long firstRoot(Checkpoint resume) {
+        return resume != null ? resume.root : 0;
+    }
+
+    private static ResumePoint resumePoint(Checkpoint resume, long index) {
+        return resume != null && index == resume.root && resume.last != null ? new ResumePoint(resume.last) : null;
+    }
+
+    private static IoThrottle throttle(WalkOptions options) {
+        if (options.limitBytes == 0 && options.limitOpens == 0 && options.limitFile == null) {
+            return IoThrottle.UNLIMITED;
+        }
+        IoThrottle throttle = new IoThrottle(options.limitBytes, options.limitOpens);
+        if (options.limitFile != null) {
+            throttle.watch(Paths.get(options.limitFile));
+        }
+        return throttle;
+    }
+
+    private static void run(WalkOptions options) throws IOException {
+        IoThrottle throttle = throttle(options);
+        HashEngine engine = new HashEngine(options.hash, throttle);
+        HashCache cache = loadCache(options, engine);
+        FileHasher hasher = cache != null ? cache : engine;
+        if (options.fingerprint) {
+            hasher = new FingerprintHasher(options.hash, throttle);
+        }
+        HardLinkHasher hardLinks = null;
+        if (options.hardLinks) {
+            hasher = hardLinks = new HardLinkHasher(hasher);
+        }
+        ArchiveHasher archives = null;
+        if (options.archives) {
+            int threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+            hasher = archives = new ArchiveHasher(hasher, options.hash, threads, throttle);
+        }
+        WalkMetrics metrics = null;
+        if (options.progress > 0 || options.metrics != null) {
+            metrics = new WalkMetrics();
+            hasher = metrics.meter(hasher);
+            if (options.progress > 0) {
+                metrics.startProgress(System.err, options.progress);
+            }
+        }
+        try {
+            if (options.duplicates) {
+                findDuplicates(options, hasher, throttle);
+            } else {
+                writeManifest(options, hasher, archives, throttle, metrics);
+            }
+        } finally {
+            if (metrics != null) {
+                metrics.stopProgress();
+            }
+        }
+        if (options.metrics != null) {
+            Files.write(Paths.get(options.metrics), metrics.toJson().getBytes(charsetUTF8));
+        }
+        if (cache != null) {
+            cache.save();
+        }
+        if (hardLinks != null) {
+            System.err.format("Hard links: %d files reused hashes, %d bytes not read%n",
+                    hardLinks.reusedFiles(), hardLinks.savedBytes());
+        }
+    }
+
+    private static void writeManifest(WalkOptions options, FileHasher hasher, ArchiveHasher archives, IoThrottle throttle,
+                                      WalkMetrics metrics) throws IOException {
+        Path inputPath = Paths.get(options.input);
+        Path outputPath = Paths.get(options.output);
+        ParallelWalker parallelWalker = null;
+        DeviceWalker deviceWalker = null;
+        InodeOrderWalker inodeWalker = null;
+        OrderedWalker orderedWalker = null;
+        String orderedMode = null;
+        long start = System.nanoTime();
+        Checkpoint resume = null;
+        if (options.resume) {
+            resume = Checkpoint.load(Paths.get(options.checkpoint));
+            if (resume != null && (!resume.input.equals(options.input) || !resume.algorithm.equals(algorithm(options)))) {
+                throw new IOException("Checkpoint " + options.checkpoint + " belongs to a walk of another input or hash algorithm");
+            }
+        }
+        try (BufferedReader reader = Files.newBufferedReader(inputPath, charsetUTF8);
+             CheckpointSink checkpoints = openCheckpoints(outputPath, options, resume);
+             ManifestDiff diff = openDiff(outputPath, options);
+             ManifestSink writer = openOutput(outputPath, options, archives, metrics, checkpoints, diff)) {
+            String line;
+            MerkleSink merkle = options.merkle ? new MerkleSink(writer, options.hash) : null;
+            ManifestSink sink = merkle != null ? merkle : writer;
+            walker = new Walker(sink, hasher, metrics);
+            if (options.asyncReads > 0) {
+                int maxOpenFiles = 2 * Math.min(options.asyncReads, AsyncHashEngine.MAX_READER_THREADS);
+                AsyncHashEngine engine = new AsyncHashEngine(options.hash, options.asyncReads, ASYNC_CHUNK_SIZE, maxOpenFiles, throttle);
+                orderedWalker = new AsyncWalker(engine, maxOpenFiles, sink, hasher.length(), metrics);
+                orderedMode = "asynchronous reads, up to " + engine.inFlight() + " in flight";
+            } else if (options.openFiles > 0) {
+                ThreadPerFileWalker threadPerFileWalker = new ThreadPerFileWalker(options.openFiles, options.virtual, sink, hasher, metrics);
+                orderedWalker = threadPerFileWalker;
+                orderedMode = threadPerFileWalker.isVirtual() ? "virtual threads" : "platform threads";
+            } else if (options.threads > 0) {
+                parallelWalker = new ParallelWalker(options.threads, sink, hasher, metrics);
+            } else if (options.deviceThreads > 0) {
+                deviceWalker = new DeviceWalker(options.deviceThreads, options.deviceLimits, sink, hasher, metrics);
+            } else if (options.inodeOrder) {
+                inodeWalker = new InodeOrderWalker(sink, hasher, metrics);
+            }
+            if (orderedWalker != null) {
+                orderedWalker.filter(options.filter);
+            } else if (parallelWalker != null) {
+                parallelWalker.filter(options.filter);
+            } else if (deviceWalker != null) {
+                deviceWalker.filter(options.filter);
+            } else if (inodeWalker != null) {
+                inodeWalker.filter(options.filter);
+            }
+            List<Path> roots = new ArrayList<>();
+            while ((line = reader.readLine()) != null) {
+                roots.add(Paths.get(line));
+            }
+            Deque<DeviceWalker.Started> started = new ArrayDeque<>();
+            int nextStarted = (int) firstRoot(resume);
+            for (int index = 0; index < roots.size(); index++) {
+                Path path = roots.get(index);
+                if (index < firstRoot(resume)) {
+                    continue;
+                }
+                ResumePoint resumePoint = resumePoint(resume, index);
+                if (merkle != null) {
+                    merkle.beginRoot(path);
+                }
+                if (checkpoints != null) {
+                    checkpoints.beginRoot(index, path);
+                }
+                if (deviceWalker != null) {
+                    // roots up to the window end are started, each prefetching a bounded part of its tree, and are written in order
+                    for (; nextStarted < roots.size() && nextStarted < index + DeviceWalker.ROOT_WINDOW; nextStarted++) {
+                        started.add(deviceWalker.start(roots.get(nextStarted), resumePoint(resume, nextStarted)));
+                    }
+                    deviceWalker.write(started.poll());
+                } else if (orderedWalker != null) {
+                    orderedWalker.walk(path, resumePoint);
+                } else if (parallelWalker != null) {
+                    parallelWalker.walk(path, resumePoint);
+                } else if (inodeWalker != null) {
+                    inodeWalker.walk(path, resumePoint);
+                } else {
+                    walker.resume(resumePoint);
+                    walker.filter(options.filter, path);
+                    walk(path, sink);
+                    walker.resume(null);
+                    walker.filter(null, null);
+                }
+                if (merkle != null) {
+                    merkle.endRoot();
+                }
+                if (checkpoints != null) {
+                    checkpoints.endRoot();
+                }
+            }
+            if (checkpoints != null) {
+                checkpoints.finish();
+            }
+            if (diff != null) {
+                diff.finish();
+                System.err.format("Diff: %s%n", diff.summary());
+            }
+        } finally {
+            if (parallelWalker != null) {
+                parallelWalker.shutdown();
+            }
+            if (deviceWalker != null) {
+                deviceWalker.shutdown();
+            }
+            if (orderedWalker != null) {
+                orderedWalker.shutdown();
+            }
+        }
+        if (orderedWalker != null) {
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            System.err.format("Hashed %d files, %d bytes in %.3f s by %s: %.1f files/s, %.1f MB/s%n",
+                    orderedWalker.files(), orderedWalker.bytes(), seconds, orderedMode,
+                    orderedWalker.files() / seconds, orderedWalker.bytes() / seconds / (1 << 20));
         }
+    }
+
+    private static void findDuplicates(WalkOptions options, FileHasher hasher, IoThrottle throttle) throws IOException {
+        DuplicateFinder finder = new DuplicateFinder(hasher, options.hash, options.threads, throttle);
+        finder.filter(options.filter);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(options.input), charsetUTF8);
+             ManifestWriter writer = new ManifestWriter(Paths.get(options.output))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                finder.add(Paths.get(line));
+            }
+            finder.write(writer);
+        }
+    }
+
+    private static void diffManifests(WalkOptions options) throws IOException {
+        try (ManifestSource current = ManifestSource.open(Paths.get(options.input));
+             ManifestDiff diff = openDiff(Paths.get(options.diff), Paths.get(options.output), current.algorithm(), current.fingerprints())) {
+            while (current.next()) {
+                diff.write(current.hash(), current.path());
+            }
+            diff.finish();
+            System.err.format("Diff: %s%n", diff.summary());
+        }
+    }
+
+    private static void toText(WalkOptions options) throws IOException {
+        try (BinaryManifestReader reader = BinaryManifestReader.open(Paths.get(options.input), false);
+             ManifestWriter writer = new ManifestWriter(Paths.get(options.output),
+                     reader.algorithm().startsWith(FingerprintHasher.ALGORITHM_PREFIX) ? FingerprintHasher.TEXT_PREFIX : "")) {
+            while (reader.next()) {
+                writer.write(reader.hash(), reader.path());
+            }
+        }
+    }
 
-        return true;
+    /**
+     * Writes lines of paths listed in the input file as found in the index, with zero hashes for missing paths.
+     */
+    private static void lookup(WalkOptions options) throws IOException {
+        try (ManifestIndex index = ManifestIndex.open(Paths.get(options.lookup));
+             BufferedReader reader = Files.newBufferedReader(Paths.get(options.input), charsetUTF8);
+             ManifestWriter writer = new ManifestWriter(Paths.get(options.output))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                byte[] hash = index.hash(line);
+                writer.write(hash != null ? hash : new byte[index.hashLength()], line);
+            }
+        }
+    }
+
+    private static void watch(WalkOptions options) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(options.input), charsetUTF8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                roots.add(Paths.get(line));
+            }
+        }
+        HashEngine engine = new HashEngine(options.hash, throttle(options));
+        HashCache cache = loadCache(options, engine);
+        FileHasher hasher = cache != null ? cache : engine;
+        new DirectoryWatcher(roots, Paths.get(options.output), hasher, cache, options.watchLatency).run();
     }
 
     public static void main(String[] args) {
-        if (!checkArgs(args)) {
+        WalkOptions options = checkArgs(args);
+        if (options == null) {
             return;
         }
 
-        Path inputPath = Paths.get(args[0]);
-            Path outputPath = Paths.get(args[1]);
-            try (BufferedReader reader = Files.newBufferedReader(inputPath, charsetUTF8);
-                 BufferedWriter writer = Files.newBufferedWriter(outputPath, charsetUTF8)) {
-                String line;
-                walker = new Walker(writer);
-                while ((line = reader.readLine()) != null) {
-                    Path path = Paths.get(line);
-                    walk(path, writer);
-                }
-            } catch (NoSuchFileException e) {
-                System.err.format("Error, no such file: %s%n", e.getFile());
-                printUsage();
-            } catch (IOException e) {
-                System.err.format("IOException: %s%n", e);
-                printUsage();
+        try {
+            if (options.toText) {
+                toText(options);
+            } else if (options.lookup != null) {
+                lookup(options);
+            } else if (options.inputManifest) {
+                diffManifests(options);
+            } else if (options.watchLatency >= 0) {
+                watch(options);
+            } else {
+                run(options);
             }
+        } catch (NoSuchFileException e) {
+            System.err.format("Error, no such file: %s%n", e.getFile());
+            printUsage();
+        } catch (IOException e) {
+            System.err.format("IOException: %s%n", e);
+            printUsage();
+        }
     }
 }
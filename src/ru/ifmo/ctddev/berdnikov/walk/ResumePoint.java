@@ -0,0 +1,55 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells which entries of a root were written before a {@link Checkpoint}, so a resumed walk
+ * skips them, and whole directories among them, without reading or hashing.
+ * <p>
+ * In walk order, entries of a directory on the path to the last written file come
+ * in directory stream order: those before the entry on the path are written, the entry on the
+ * path is entered (or, being the file itself, written), those after it are not written. Entries
+ * of other directories are not written, as such directories are either skipped as a whole or
+ * come after the file. So the answer depends only on the directory of an entry, and walkers
+ * may ask for different directories from different threads.
+ * <p>
+ * This relies on directory streams of the written part of the tree giving the same entries in
+ * the same order as in the interrupted run.
+ */
+class ResumePoint {
+    private final Path last;
+    /**
+     * Directories on the path whose entry on the path has been seen.
+     */
+    private final Set<Path> passed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates resume point.
+     *
+     * @param last last file written before the checkpoint
+     */
+    ResumePoint(Path last) {
+        this.last = last;
+    }
+
+    /**
+     * Returns whether given entry was written before the checkpoint. Entries of one directory
+     * must be given in directory stream order.
+     *
+     * @param entry entry of a directory
+     * @return <tt>true</tt> if entry, with all its subtree, is already written
+     */
+    boolean written(Path entry) {
+        Path dir = entry.getParent();
+        if (dir == null || !last.startsWith(dir) || last.equals(dir) || passed.contains(dir)) {
+            return false;
+        }
+        if (last.startsWith(entry)) {
+            passed.add(dir);
+            return entry.equals(last);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.*;
+
+/**
+ * Walk which hashes every file in its own thread, for file systems where reading
+ * is mostly waiting, such as NFS or FUSE mounts.
+ * <p>
+ * A semaphore limits the number of files open at once, and the number of hashed
+ * but not yet written files is limited by four times as many.
+ * <p>
+ * Threads are either virtual, which needs Java 21 or later, or come from a cached pool
+ * of platform threads. Buffers are reused through the {@link HashEngine} pool.
+ */
+class ThreadPerFileWalker extends OrderedWalker {
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore openFiles;
+    private final FileHasher hasher;
+
+    /**
+     * Creates walker.
+     *
+     * @param maxOpenFiles maximal number of files hashed at the same time
+     * @param virtual whether virtual threads should be used
+     * @param writer output
+     * @param hasher source of file hashes
+     * @param metrics metrics of the walk, <tt>null</tt> if not collected
+     * @throws IllegalArgumentException if virtual threads are asked for and this JVM has none,
+     * see {@link #virtualThreadsSupported()}
+     */
+    ThreadPerFileWalker(int maxOpenFiles, boolean virtual, ManifestSink writer, FileHasher hasher, WalkMetrics metrics) {
+        super(writer, hasher.length(), 4 * maxOpenFiles, metrics);
+        ExecutorService executor = virtual ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtual && executor == null) {
+            throw new IllegalArgumentException("Virtual threads need Java 21 or later");
+        }
+        this.virtual = virtual;
+        this.executor = executor != null ? executor : Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "hasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.openFiles = new Semaphore(maxOpenFiles);
+        this.hasher = hasher;
+    }
+
+    /**
+     * Returns whether this JVM has virtual threads, so they can be used without preview features.
+     *
+     * @return <tt>true</tt> on Java 21 and later
+     */
+    static boolean virtualThreadsSupported() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    /**
+     * Returns executor which starts a virtual thread per task, or <tt>null</tt>
+     * if this JVM has no virtual threads or has them only as a preview.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether files are hashed by virtual threads.
+     *
+     * @return <tt>true</tt> for virtual threads, <tt>false</tt> for platform ones
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    protected Future<byte[]> start(Path file, BasicFileAttributes attrs) throws IOException {
+        try {
+            openFiles.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for hashing threads");
+        }
+        try {
+            return executor.submit(() -> {
+                try {
+                    return RecursiveWalk.Walker.countHash(file, attrs, hasher);
+                } finally {
+                    openFiles.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            openFiles.release();
+            throw e;
+        }
+    }
+
+    @Override
+    void shutdown() {
+        executor.shutdown();
+    }
+}
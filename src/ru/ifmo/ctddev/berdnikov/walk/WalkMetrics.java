@@ -0,0 +1,383 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import jdk.jfr.*;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a walk: counts of files, bytes and directories, histogram of per-file
+ * hash latency, time spent hashing and writing output, and the slowest directories.
+ * <p>
+ * Hashing is measured by wrapping the {@link FileHasher} with {@link #meter(FileHasher)},
+ * output by wrapping the {@link ManifestSink} with {@link #meter(ManifestSink)}, and
+ * walkers report directories by {@link #directory()} and time of their <tt>visitFile</tt>
+ * by {@link #visit(long)}. Hashing and output times are sums over all threads.
+ * A directory's time is the time of hashing its files.
+ * <p>
+ * Times of directories are summed in a bounded table of the {@link #SKETCH_DIRECTORIES} slowest
+ * ones, so the slowest directories are approximate: a directory dropped from the table and met
+ * again later, as in parallel walks, misses the time it had, which is at most the largest
+ * dropped time, reported as <tt>slowestDirectoriesMaxErrorNanos</tt>. When that is <tt>0</tt>,
+ * the list is exact.
+ * <p>
+ * Metrics are available as a periodic progress line, as a JSON summary and as
+ * JFR events: {@link FileHashEvent} per hashed file and {@link ProgressEvent} per
+ * progress tick.
+ */
+class WalkMetrics {
+    private static final int TOP_DIRECTORIES = 10;
+    /**
+     * Number of directories whose times are kept, the top list is taken from them.
+     */
+    private static final int SKETCH_DIRECTORIES = 1 << 12;
+    /**
+     * Directory times are merged into the kept ones when this many directories are tracked.
+     */
+    private static final int MAX_TRACKED_DIRECTORIES = 1 << 16;
+    private static final int BUCKETS = 64;
+
+    private final long start = System.nanoTime();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder visitNanos = new LongAdder();
+    private final LongAdder outputNanos = new LongAdder();
+    /**
+     * Bucket <tt>i</tt> counts hashes which took from <tt>2^i</tt> to <tt>2^(i+1)</tt> nanoseconds.
+     */
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    private final Map<Path, DirectoryTime> tracked = new ConcurrentHashMap<>();
+    private final Map<Path, DirectoryTime> slowest = new HashMap<>();
+    /**
+     * Largest time of a directory dropped from {@link #slowest}.
+     */
+    private long droppedNanos;
+    private ScheduledExecutorService progress;
+
+    /**
+     * Counts a visited directory.
+     */
+    void directory() {
+        directories.increment();
+    }
+
+    /**
+     * Records time spent by a walker in <tt>visitFile</tt>, including hashing and output
+     * for the sequential walk and starting of hashing for the concurrent ones.
+     *
+     * @param nanos time in nanoseconds
+     */
+    void visit(long nanos) {
+        visitNanos.add(nanos);
+    }
+
+    /**
+     * Records a hashed file.
+     *
+     * @param file hashed file
+     * @param size size of file
+     * @param nanos time of hashing in nanoseconds
+     */
+    void file(Path file, long size, long nanos) {
+        files.increment();
+        bytes.add(size);
+        hashNanos.add(nanos);
+        latency.incrementAndGet(BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+        Path dir = file.getParent();
+        if (dir != null) {
+            // values are replaced, not updated, so a merge can't lose what it has not taken
+            tracked.merge(dir, new DirectoryTime(nanos, 1), DirectoryTime::plus);
+            if (tracked.size() > MAX_TRACKED_DIRECTORIES) {
+                mergeTracked();
+            }
+        }
+    }
+
+    private synchronized void mergeTracked() {
+        for (Path dir : tracked.keySet()) {
+            DirectoryTime time = tracked.remove(dir);
+            if (time != null) {
+                slowest.merge(dir, time, DirectoryTime::plus);
+            }
+        }
+        if (slowest.size() > SKETCH_DIRECTORIES) {
+            List<Map.Entry<Path, DirectoryTime>> entries = sortedSlowest();
+            droppedNanos = Math.max(droppedNanos, entries.get(SKETCH_DIRECTORIES).getValue().nanos);
+            for (Map.Entry<Path, DirectoryTime> e : entries.subList(SKETCH_DIRECTORIES, entries.size())) {
+                slowest.remove(e.getKey());
+            }
+        }
+    }
+
+    private List<Map.Entry<Path, DirectoryTime>> sortedSlowest() {
+        List<Map.Entry<Path, DirectoryTime>> entries = new ArrayList<>(slowest.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().nanos, a.getValue().nanos));
+        return entries;
+    }
+
+    /**
+     * Wraps given hasher so that every hashed file is recorded.
+     *
+     * @param hasher hasher to measure
+     * @return measured hasher
+     */
+    FileHasher meter(FileHasher hasher) {
+        return new FileHasher() {
+            @Override
+            public byte[] hash(Path file, BasicFileAttributes attrs) throws IOException {
+                FileHashEvent event = new FileHashEvent();
+                event.begin();
+                long start = System.nanoTime();
+                try {
+                    return hasher.hash(file, attrs);
+                } finally {
+                    file(file, attrs.size(), System.nanoTime() - start);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.path = file.toString();
+                        event.size = attrs.size();
+                        event.commit();
+                    }
+                }
+            }
+
+            @Override
+            public int length() {
+                return hasher.length();
+            }
+        };
+    }
+
+    /**
+     * Wraps given sink so that time spent in output is recorded.
+     *
+     * @param sink sink to measure
+     * @return measured sink
+     */
+    ManifestSink meter(ManifestSink sink) {
+        return new ManifestSink() {
+            @Override
+            public void write(byte[] hash, Path file) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    sink.write(hash, file);
+                } finally {
+                    outputNanos.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public void writeDirectory(byte[] hash, Path dir) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    sink.writeDirectory(hash, dir);
+                } finally {
+                    outputNanos.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    sink.close();
+                } finally {
+                    outputNanos.add(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts printing progress line to given stream every given number of seconds.
+     *
+     * @param out stream for progress lines
+     * @param period period in seconds
+     */
+    synchronized void startProgress(PrintStream out, long period) {
+        progress = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "walk-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> {
+            out.println(progressLine());
+            ProgressEvent event = new ProgressEvent();
+            event.files = files.sum();
+            event.bytes = bytes.sum();
+            event.directories = directories.sum();
+            event.commit();
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops progress lines.
+     */
+    synchronized void stopProgress() {
+        if (progress != null) {
+            progress.shutdownNow();
+            progress = null;
+        }
+    }
+
+    private double seconds() {
+        return Math.max(System.nanoTime() - start, 1) / 1e9;
+    }
+
+    /**
+     * Returns one line with current counters and rates.
+     *
+     * @return progress line
+     */
+    String progressLine() {
+        double seconds = seconds();
+        long files = this.files.sum();
+        long bytes = this.bytes.sum();
+        return String.format("Progress: %.0f s, %d files, %d directories, %.1f MB; %.1f files/s, %.1f MB/s",
+                seconds, files, directories.sum(), bytes / 1e6, files / seconds, bytes / 1e6 / seconds);
+    }
+
+    /**
+     * Returns summary of the walk as a JSON object.
+     *
+     * @return JSON summary
+     */
+    String toJson() {
+        double seconds = seconds();
+        long files = this.files.sum();
+        long bytes = this.bytes.sum();
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append(String.format(Locale.ROOT, "  \"elapsedSeconds\": %.3f,%n", seconds));
+        sb.append(String.format("  \"files\": %d,%n", files));
+        sb.append(String.format("  \"directories\": %d,%n", directories.sum()));
+        sb.append(String.format("  \"bytes\": %d,%n", bytes));
+        sb.append(String.format(Locale.ROOT, "  \"filesPerSecond\": %.1f,%n", files / seconds));
+        sb.append(String.format(Locale.ROOT, "  \"bytesPerSecond\": %.1f,%n", bytes / seconds));
+        sb.append(String.format("  \"visitFileNanos\": %d,%n", visitNanos.sum()));
+        sb.append(String.format("  \"hashNanos\": %d,%n", hashNanos.sum()));
+        sb.append(String.format("  \"outputNanos\": %d,%n", outputNanos.sum()));
+        sb.append("  \"hashLatencyNanos\": {");
+        String separator = "";
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = latency.get(i);
+            if (count > 0) {
+                sb.append(separator).append(String.format("\"<%d\": %d", 1L << Math.min(i + 1, 62), count));
+                separator = ", ";
+            }
+        }
+        sb.append("},\n");
+        sb.append(String.format("  \"hashLatencyPercentilesNanos\": {\"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d},%n",
+                percentile(0.5), percentile(0.9), percentile(0.99), percentile(1)));
+        List<Map.Entry<Path, DirectoryTime>> entries;
+        long maxError;
+        synchronized (this) {
+            mergeTracked();
+            entries = sortedSlowest();
+            maxError = droppedNanos;
+        }
+        entries = entries.subList(0, Math.min(TOP_DIRECTORIES, entries.size()));
+        sb.append(String.format("  \"slowestDirectoriesMaxErrorNanos\": %d,%n", maxError));
+        sb.append("  \"slowestDirectories\": [");
+        separator = "\n";
+        for (Map.Entry<Path, DirectoryTime> e : entries) {
+            sb.append(separator).append(String.format("    {\"path\": \"%s\", \"hashNanos\": %d, \"files\": %d}",
+                    escape(e.getKey().toString()), e.getValue().nanos, e.getValue().files));
+            separator = ",\n";
+        }
+        sb.append(entries.isEmpty() ? "]\n" : "\n  ]\n").append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns upper bound of the histogram bucket containing given fraction of hashes.
+     */
+    private long percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += latency.get(i);
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latency.get(i);
+            if (seen > 0 && seen >= fraction * total) {
+                return 1L << Math.min(i + 1, 62);
+            }
+        }
+        return 0;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class DirectoryTime {
+        private final long nanos;
+        private final long files;
+
+        DirectoryTime(long nanos, long files) {
+            this.nanos = nanos;
+            this.files = files;
+        }
+
+        DirectoryTime plus(DirectoryTime other) {
+            return new DirectoryTime(nanos + other.nanos, files + other.files);
+        }
+    }
+
+    /**
+     * JFR event of hashing one file.
+     */
+    @Name("ru.ifmo.ctddev.berdnikov.walk.FileHash")
+    @Label("File Hash")
+    @Category("RecursiveWalk")
+    @StackTrace(false)
+    static class FileHashEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    /**
+     * JFR event with counters of the walk, committed at every progress line.
+     */
+    @Name("ru.ifmo.ctddev.berdnikov.walk.Progress")
+    @Label("Walk Progress")
+    @Category("RecursiveWalk")
+    @StackTrace(false)
+    static class ProgressEvent extends Event {
+        @Label("Files")
+        long files;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Directories")
+        long directories;
+    }
+}
@@ -0,0 +1,402 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of {@link RecursiveWalk}.
+ * <p>
+ * Options go before the two positional arguments:
+ * <tt>[options] &lt;input file&gt; &lt;output file&gt;</tt>.
+ * Without options the walk behaves exactly as the plain sequential one.
+ */
+class WalkOptions {
+    /**
+     * Number of fork/join workers, <tt>0</tt> means sequential walk.
+     */
+    int threads;
+    /**
+     * File of persistent {@link HashCache}, <tt>null</tt> if cache is not used.
+     */
+    String cache;
+    /**
+     * Maximal delay of manifest update in watch mode, negative if not watching.
+     */
+    long watchLatency = -1;
+    /**
+     * Algorithm of file hashes.
+     */
+    HashProvider hash = HashProviders.DEFAULT;
+    /**
+     * Capacity in batches of the queue to a separate writer thread, <tt>0</tt> to write from the walking thread.
+     */
+    int pipeline;
+    /**
+     * Whether hashes are reused for hard links to an already hashed inode.
+     */
+    boolean hardLinks;
+    /**
+     * Whether groups of identical files are written instead of the manifest.
+     */
+    boolean duplicates;
+    /**
+     * Maximal number of files open at once when every file is hashed by its own thread,
+     * <tt>0</tt> if this mode is off.
+     */
+    int openFiles;
+    /**
+     * Whether threads hashing one file each are virtual, only on Java 21 and later.
+     */
+    boolean virtual;
+    /**
+     * Number of asynchronous reads in flight, <tt>0</tt> if files are read by blocking calls.
+     * At most {@link AsyncHashEngine#MAX_READER_THREADS} of them are used.
+     */
+    int asyncReads;
+    /**
+     * Period in seconds of progress lines, <tt>0</tt> if progress is not shown.
+     */
+    int progress;
+    /**
+     * File for JSON summary of {@link WalkMetrics}, <tt>null</tt> if it is not written.
+     */
+    String metrics;
+    /**
+     * Whether the manifest is written by {@link BinaryManifestWriter} instead of as text.
+     */
+    boolean binary;
+    /**
+     * Whether the input file is a binary manifest to be converted to text instead of a list of roots.
+     */
+    boolean toText;
+    /**
+     * Previous manifest which the walk is compared with by {@link ManifestDiff}, <tt>null</tt> if the manifest is written.
+     */
+    String diff;
+    /**
+     * Whether the input file is a manifest to be compared with {@link #diff} instead of a list of roots.
+     */
+    boolean inputManifest;
+    /**
+     * File of {@link ManifestIndex} built along with the manifest, <tt>null</tt> if no index is built.
+     */
+    String index;
+    /**
+     * Index whose hashes of paths listed in the input file are written, <tt>null</tt> if the input file lists roots.
+     */
+    String lookup;
+    /**
+     * Whether entries of zip archives are hashed by {@link ArchiveHasher}.
+     */
+    boolean archives;
+    /**
+     * Whether hashes of directories are written by {@link MerkleSink}.
+     */
+    boolean merkle;
+    /**
+     * Whether files are hashed by {@link FingerprintHasher} instead of whole.
+     */
+    boolean fingerprint;
+    /**
+     * File of {@link Checkpoint}, <tt>null</tt> if checkpoints are not saved.
+     */
+    String checkpoint;
+    /**
+     * Interval between checkpoints in seconds.
+     */
+    int checkpointInterval = 30;
+    /**
+     * Whether the walk continues from the saved checkpoint.
+     */
+    boolean resume;
+    /**
+     * Limit of bytes read per second, <tt>0</tt> for no limit.
+     */
+    long limitBytes;
+    /**
+     * Limit of files opened per second, <tt>0</tt> for no limit.
+     */
+    long limitOpens;
+    /**
+     * Control file of {@link IoThrottle#watch}, <tt>null</tt> if limits are fixed.
+     */
+    String limitFile;
+    /**
+     * Whether files of each directory are read in inode order by {@link InodeOrderWalker}.
+     */
+    boolean inodeOrder;
+    /**
+     * Number of threads per device of {@link DeviceWalker}, <tt>0</tt> if roots are not walked per device.
+     */
+    int deviceThreads;
+    /**
+     * Numbers of threads for devices of given paths.
+     */
+    final Map<Path, Integer> deviceLimits = new LinkedHashMap<>();
+    /**
+     * Include rules of {@link PathFilter}, in order of options.
+     */
+    final List<String> includes = new ArrayList<>();
+    /**
+     * Exclude rules of {@link PathFilter}, in order of options.
+     */
+    final List<String> excludes = new ArrayList<>();
+    /**
+     * Filter compiled from {@link #includes} and {@link #excludes}, <tt>null</tt> if there are no rules.
+     */
+    PathFilter filter;
+    String input;
+    String output;
+
+    /**
+     * Parses command line arguments.
+     *
+     * @param args arguments given to {@link RecursiveWalk#main(String[])}
+     * @return parsed options
+     * @throws IllegalArgumentException if arguments are malformed
+     */
+    static WalkOptions parse(String[] args) {
+        WalkOptions options = new WalkOptions();
+        int i = 0;
+        while (i < args.length && args[i] != null && args[i].startsWith("--")) {
+            String option = args[i++];
+            switch (option) {
+                case "--parallel":
+                    options.threads = parseInt(option, value(args, i++));
+                    if (options.threads < 1) {
+                        throw new IllegalArgumentException("number of threads must be positive");
+                    }
+                    break;
+                case "--cache":
+                    options.cache = value(args, i++);
+                    break;
+                case "--watch":
+                    options.watchLatency = parseInt(option, value(args, i++));
+                    if (options.watchLatency < 0) {
+                        throw new IllegalArgumentException("latency must be non-negative");
+                    }
+                    break;
+                case "--hash":
+                    options.hash = HashProviders.forName(value(args, i++));
+                    break;
+                case "--pipeline":
+                    options.pipeline = parseInt(option, value(args, i++));
+                    if (options.pipeline < 1) {
+                        throw new IllegalArgumentException("pipeline capacity must be positive");
+                    }
+                    break;
+                case "--hard-links":
+                    options.hardLinks = true;
+                    break;
+                case "--duplicates":
+                    options.duplicates = true;
+                    break;
+                case "--virtual":
+                case "--thread-per-file":
+                    options.openFiles = parseInt(option, value(args, i++));
+                    options.virtual = option.equals("--virtual");
+                    if (options.openFiles < 1) {
+                        throw new IllegalArgumentException("number of open files must be positive");
+                    }
+                    if (options.virtual && !ThreadPerFileWalker.virtualThreadsSupported()) {
+                        throw new IllegalArgumentException("--virtual needs virtual threads of Java 21 or later, use --thread-per-file");
+                    }
+                    break;
+                case "--async":
+                    options.asyncReads = parseInt(option, value(args, i++));
+                    if (options.asyncReads < 1) {
+                        throw new IllegalArgumentException("number of reads in flight must be positive");
+                    }
+                    break;
+                case "--progress":
+                    options.progress = parseInt(option, value(args, i++));
+                    if (options.progress < 1) {
+                        throw new IllegalArgumentException("progress period must be positive");
+                    }
+                    break;
+                case "--metrics":
+                    options.metrics = value(args, i++);
+                    break;
+                case "--format":
+                    String format = value(args, i++);
+                    if (!format.equals("text") && !format.equals("binary")) {
+                        throw new IllegalArgumentException("unknown format " + format + ", known formats: text, binary");
+                    }
+                    options.binary = format.equals("binary");
+                    break;
+                case "--checkpoint":
+                    options.checkpoint = value(args, i++);
+                    break;
+                case "--checkpoint-interval":
+                    options.checkpointInterval = parseInt(option, value(args, i++));
+                    if (options.checkpointInterval < 1) {
+                        throw new IllegalArgumentException("checkpoint interval must be positive");
+                    }
+                    break;
+                case "--resume":
+                    options.resume = true;
+                    break;
+                case "--inode-order":
+                    options.inodeOrder = true;
+                    break;
+                case "--per-device":
+                    options.deviceThreads = parseInt(option, value(args, i++));
+                    if (options.deviceThreads < 1) {
+                        throw new IllegalArgumentException("number of threads must be positive");
+                    }
+                    break;
+                case "--device-threads":
+                    String limit = value(args, i++);
+                    int eq = limit.lastIndexOf('=');
+                    if (eq < 0) {
+                        throw new IllegalArgumentException("expected <path>=<threads> for " + option);
+                    }
+                    int deviceThreads = parseInt(option, limit.substring(eq + 1));
+                    if (deviceThreads < 1) {
+                        throw new IllegalArgumentException("number of threads must be positive");
+                    }
+                    options.deviceLimits.put(Paths.get(limit.substring(0, eq)), deviceThreads);
+                    break;
+                case "--limit-bytes":
+                    options.limitBytes = IoThrottle.parseAmount(value(args, i++));
+                    break;
+                case "--limit-opens":
+                    options.limitOpens = IoThrottle.parseAmount(value(args, i++));
+                    break;
+                case "--limit-file":
+                    options.limitFile = value(args, i++);
+                    break;
+                case "--include":
+                    options.includes.add(value(args, i++));
+                    break;
+                case "--exclude":
+                    options.excludes.add(value(args, i++));
+                    break;
+                case "--archives":
+                    options.archives = true;
+                    break;
+                case "--fingerprint":
+                    options.fingerprint = true;
+                    break;
+                case "--merkle":
+                    options.merkle = true;
+                    break;
+                case "--to-text":
+                    options.toText = true;
+                    break;
+                case "--diff":
+                    options.diff = value(args, i++);
+                    break;
+                case "--input-manifest":
+                    options.inputManifest = true;
+                    break;
+                case "--index":
+                    options.index = value(args, i++);
+                    break;
+                case "--lookup":
+                    options.lookup = value(args, i++);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+        if (options.threads > 0 && (options.openFiles > 0 || options.asyncReads > 0)) {
+            throw new IllegalArgumentException("--parallel is a walk of its own, it can't be combined "
+                    + "with --virtual, --thread-per-file or --async");
+        }
+        if (options.asyncReads > 0 && options.openFiles > 0) {
+            throw new IllegalArgumentException("--async is a walk of its own, it can't be combined with --virtual or --thread-per-file");
+        }
+        if (options.watchLatency >= 0 && (options.hardLinks || options.pipeline > 0)) {
+            throw new IllegalArgumentException("--watch keeps its own tree and rewrites the manifest itself, it can't be combined "
+                    + "with --hard-links or --pipeline");
+        }
+        if (options.asyncReads > 0 && (options.cache != null || options.hardLinks || options.archives)) {
+            throw new IllegalArgumentException("--async reads every file past the file hashers and can't be combined "
+                    + "with --cache, --hard-links or --archives");
+        }
+        if ((options.binary || options.merkle) && (options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--format and --merkle apply to manifests, not to --duplicates or --watch");
+        }
+        if (options.fingerprint && (options.cache != null || options.asyncReads > 0 || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--fingerprint can't be combined with --cache, --async, --duplicates or --watch");
+        }
+        if (options.deviceThreads > 0 && (options.threads > 0 || options.openFiles > 0 || options.asyncReads > 0
+                || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--per-device can't be combined with --parallel, --virtual, "
+                    + "--thread-per-file, --async, --duplicates or --watch");
+        }
+        if (options.inodeOrder && (options.threads > 0 || options.openFiles > 0 || options.asyncReads > 0
+                || options.deviceThreads > 0 || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--inode-order is a sequential walk, it can't be combined with --parallel, "
+                    + "--virtual, --thread-per-file, --async, --per-device, --duplicates or --watch");
+        }
+        if (!options.deviceLimits.isEmpty() && options.deviceThreads == 0) {
+            throw new IllegalArgumentException("--device-threads needs --per-device");
+        }
+        if (options.inputManifest && options.diff == null) {
+            throw new IllegalArgumentException("--input-manifest needs --diff");
+        }
+        if (options.diff != null && (options.binary || options.pipeline > 0 || options.checkpoint != null
+                || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--diff writes text differences from the walking thread, it can't be combined "
+                    + "with --format binary, --pipeline, --checkpoint, --duplicates or --watch");
+        }
+        if (options.index != null && (options.diff != null || options.checkpoint != null
+                || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--index is built along with a whole manifest, it can't be combined "
+                    + "with --diff, --checkpoint, --duplicates or --watch");
+        }
+        if (options.lookup != null && (options.toText || options.diff != null || options.index != null || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--lookup reads an index instead of walking, it can't be combined "
+                    + "with --to-text, --diff, --index or --watch");
+        }
+        if ((!options.includes.isEmpty() || !options.excludes.isEmpty()) && options.watchLatency >= 0) {
+            throw new IllegalArgumentException("--include and --exclude can't be combined with --watch");
+        }
+        if (!options.includes.isEmpty() || !options.excludes.isEmpty()) {
+            options.filter = new PathFilter(options.includes, options.excludes);
+        }
+        if (options.archives && (options.merkle || options.fingerprint || options.checkpoint != null
+                || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--archives adds lines of entries to the manifest, it can't be combined "
+                    + "with --merkle, --fingerprint, --checkpoint, --duplicates or --watch");
+        }
+        if (options.resume && options.checkpoint == null) {
+            throw new IllegalArgumentException("--resume needs --checkpoint");
+        }
+        if (options.checkpoint != null && (options.pipeline > 0 || options.merkle || options.binary
+                || options.duplicates || options.watchLatency >= 0)) {
+            throw new IllegalArgumentException("--checkpoint writes text manifests from the walking thread, "
+                    + "it can't be combined with --pipeline, --merkle, --format binary, --duplicates or --watch");
+        }
+        if (args.length - i != 2) {
+            throw new IllegalArgumentException("expected input and output files");
+        }
+        options.input = args[i];
+        options.output = args[i + 1];
+        if (options.input == null || options.output == null) {
+            throw new IllegalArgumentException("null in args");
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length || args[i] == null) {
+            throw new IllegalArgumentException("missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad value for " + option + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import java.nio.file.Path;
+
+/**
+ * File found by {@link HashWalk}: its path, size and hash of contents.
+ */
+public final class WalkRecord {
+    private final Path path;
+    private final long size;
+    private final byte[] hash;
+
+    WalkRecord(Path path, long size, byte[] hash) {
+        this.path = path;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    /**
+     * Returns path of the file, resolved against the root of the walk.
+     *
+     * @return path of the file
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Returns size of the file when it was listed.
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns hash of the file, all zero bytes if the file can't be read.
+     *
+     * @return big-endian hash
+     */
+    public byte[] hash() {
+        return hash.clone();
+    }
+
+    /**
+     * Returns line of this file as written to text manifests: hash in hex and path.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(2 * hash.length + 1);
+        for (byte b : hash) {
+            sb.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.append(' ').append(path).toString();
+    }
+}
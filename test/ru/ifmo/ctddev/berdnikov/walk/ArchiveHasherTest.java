@@ -0,0 +1,131 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Walks with <tt>--archives</tt>: of archives whose names aren't UTF-8 and of archives
+ * hashed by parallel walks.
+ */
+public class ArchiveHasherTest {
+    /**
+     * Name of the entry, written in cp866 without the UTF-8 flag, as by older Windows tools.
+     */
+    private static final String NAME = "\u043f\u0440\u0438\u0432\u0435\u0442.txt";
+    private static final byte[] CONTENTS = "hello".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nonUtf8Names() throws IOException {
+        Path archive = folder.getRoot().toPath().resolve("cp866.zip");
+        Files.write(archive, zip());
+        checkEntries(archive);
+    }
+
+    @Test
+    public void nonUtf8NamesWithoutCentralDirectory() throws IOException {
+        byte[] zip = zip();
+        Path archive = folder.getRoot().toPath().resolve("truncated.zip");
+        // cuts the end of central directory record, so local headers are read instead
+        Files.write(archive, Arrays.copyOf(zip, zip.length - 30));
+        checkEntries(archive);
+    }
+
+    @Test
+    public void nonUtf8NamesPipelined() throws IOException {
+        Path archive = folder.getRoot().toPath().resolve("cp866.zip");
+        Files.write(archive, zip());
+        checkEntries(archive, "--pipeline", "4");
+    }
+
+    @Test
+    public void parallelWalkKeepsEntriesAfterArchives() throws IOException {
+        Path dir = folder.newFolder("archives").toPath();
+        for (int i = 0; i < 20; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+                for (int j = 0; j <= i % 3; j++) {
+                    out.putNextEntry(new ZipEntry("entry" + j + ".txt"));
+                    out.write(("archive " + i + " entry " + j).getBytes(StandardCharsets.UTF_8));
+                    out.closeEntry();
+                }
+            }
+            Files.write(dir.resolve("a" + i + ".jar"), bytes.toByteArray());
+        }
+        List<String> sequential = walk(dir);
+        assertEquals(20 + 39, sequential.size());
+        assertEquals(sequential, walk(dir, "--parallel", "4"));
+        assertEquals(sequential, walk(dir, "--parallel", "4", "--pipeline", "4"));
+    }
+
+    private static byte[] zip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes, Charset.forName("IBM866"))) {
+            out.putNextEntry(new ZipEntry(NAME));
+            out.write(CONTENTS);
+            out.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    private void checkEntries(Path archive, String... options) throws IOException {
+        List<String> lines = walk(archive, options);
+        assertTrue("no line of the archive", !lines.isEmpty() && lines.get(0).endsWith(" " + archive));
+        String name = new String(NAME.getBytes(Charset.forName("IBM866")), ArchiveHasher.FALLBACK_CHARSET);
+        Path entry;
+        try {
+            entry = Paths.get(archive + "!/" + name);
+        } catch (InvalidPathException e) {
+            // the file system can't name the entry, so it has no line
+            assertEquals(lines.toString(), 1, lines.size());
+            return;
+        }
+        assertEquals(lines.toString(), 2, lines.size());
+        Path plain = folder.newFile().toPath();
+        Files.write(plain, CONTENTS);
+        String hash = lines.get(1).substring(0, lines.get(1).indexOf(' '));
+        assertEquals(hash + " " + entry, lines.get(1));
+        assertEquals(hash, lines(plain).get(0).substring(0, hash.length()));
+    }
+
+    private List<String> walk(Path root, String... options) throws IOException {
+        Path input = folder.newFile().toPath();
+        Path output = folder.getRoot().toPath().resolve("manifest-" + System.nanoTime() + ".txt");
+        Files.write(input, Collections.singletonList(root.toString()), StandardCharsets.UTF_8);
+        String[] args = new String[options.length + 3];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = "--archives";
+        args[options.length + 1] = input.toString();
+        args[options.length + 2] = output.toString();
+        RecursiveWalk.main(args);
+        return Files.readAllLines(output, StandardCharsets.UTF_8);
+    }
+
+    private List<String> lines(Path file) throws IOException {
+        Path input = folder.newFile().toPath();
+        Path output = folder.getRoot().toPath().resolve("plain-" + System.nanoTime() + ".txt");
+        Files.write(input, Collections.singletonList(file.toString()), StandardCharsets.UTF_8);
+        RecursiveWalk.main(new String[]{input.toString(), output.toString()});
+        return Files.readAllLines(output, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package ru.ifmo.ctddev.berdnikov.walk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Round trip of a manifest through <tt>--index</tt> and <tt>--lookup</tt>.
+ */
+public class ManifestIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lookupFindsEveryLine() throws IOException {
+        Path root = tree();
+        Path manifest = folder.getRoot().toPath().resolve("manifest.txt");
+        Path index = folder.getRoot().toPath().resolve("manifest.idx");
+        run("--merkle", "--index", index.toString(), list(root.toString()).toString(), manifest.toString());
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        assertEquals(lines.toString(), 7, lines.size());
+
+        List<String> paths = new ArrayList<>();
+        for (String line : lines) {
+            paths.add(line.substring(line.indexOf(' ') + 1));
+        }
+        String missing = root.resolve("missing").toString();
+        paths.add(missing);
+        Path found = folder.getRoot().toPath().resolve("found.txt");
+        run("--lookup", index.toString(), list(paths.toArray(new String[0])).toString(), found.toString());
+
+        List<String> expected = new ArrayList<>(lines);
+        expected.add("00000000 " + missing);
+        assertEquals(expected, Files.readAllLines(found, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void pathsOfHash() throws IOException {
+        Path root = tree();
+        Path manifest = folder.getRoot().toPath().resolve("manifest.txt");
+        Path index = folder.getRoot().toPath().resolve("manifest.idx");
+        run("--index", index.toString(), list(root.toString()).toString(), manifest.toString());
+        try (ManifestIndex opened = ManifestIndex.open(index)) {
+            assertEquals(5, opened.size());
+            byte[] hash = opened.hash(root.resolve("a.txt").toString());
+            assertArrayEquals(hash, opened.hash(root.resolve("sub").resolve("copy.txt").toString()));
+            assertEquals(Arrays.asList(root.resolve("a.txt").toString(), root.resolve("sub").resolve("copy.txt").toString()),
+                    opened.paths(hash));
+            assertNull(opened.hash(root.resolve("missing").toString()));
+            assertEquals(Collections.emptyList(), opened.paths(new byte[opened.hashLength()]));
+        }
+    }
+
+    /**
+     * Creates five files, two of them equal, and one more directory.
+     */
+    private Path tree() throws IOException {
+        Path root = folder.newFolder("tree").toPath();
+        Files.createDirectory(root.resolve("sub"));
+        write(root.resolve("a.txt"), "same");
+        write(root.resolve("b.txt"), "other");
+        write(root.resolve("sub").resolve("copy.txt"), "same");
+        write(root.resolve("sub").resolve("c.txt"), "third");
+        write(root.resolve("sub").resolve("empty"), "");
+        return root;
+    }
+
+    private static void write(Path file, String contents) throws IOException {
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path list(String... lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static void run(String... args) {
+        RecursiveWalk.main(args);
+    }
+}